@@ -1,15 +1,29 @@
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+
+import processAirData.IngestPipeline;
+import processAirData.JsonStateReader;
+import processAirData.ReadOpenSkyFile;
 
 /**
  * Scrapes live data from The OpenSky Network. This class is meant for demonstrative 
@@ -20,6 +34,12 @@ import java.util.concurrent.TimeUnit;
  *  This class scrapes and stores the data in a JSON file periodically.
  *  By default, the period is 120 seconds, but this can be changed.
  *  
+ *  With -kafka, each response is instead parsed as it downloads and sent straight to Kafka,
+ *  as ReadOpenSkyFile would send it, so states reach Kafka seconds after they are scraped.
+ *  Responses are then only stored if a directory is given, and are stored compressed.
+ *  
+ *  Usage: java OpenSkyScraper [-kafka] [seconds [outDir]]
+ *  
  *  As is, the scraper scrapes indefinitely. The method needs to be killed manually.
  *  
  * @author Kevin Moss
@@ -27,8 +47,19 @@ import java.util.concurrent.TimeUnit;
  */
 public class OpenSkyScraper {
 	
+	/* A live response is sent with IngestPipeline.sendAll, on the scraping thread, so the
+	 * pipeline's reader, parser, and sender threads and its queues are never started; one of
+	 * each is the least it accepts. Only the acknowledgements it may wait for matter. */
+	private static final int pipelineThreads = 1;
+	private static final int pipelineQueueSize = 1;
+	private static final long pipelineChunkSize = 1;
+	// More than the messages of one response (a state per aircraft aloft, and its occupied boxes),
+	// so a scrape never waits for Kafka until finish
+	private static final int maxInFlight = 100000;
+	
 	/**
-	 * Executes the data scraper. Optionally, you 
+	 * Executes the data scraper. Optionally, you can set the time between scrapes, the
+	 * directory that responses are stored in, and whether to stream states to Kafka.
 	 * 
 	 * @param args
 	 * @throws UnknownHostException
@@ -37,20 +68,56 @@ public class OpenSkyScraper {
 	 */
 	public static void main(String[] args) throws UnknownHostException,
 	InterruptedException, MalformedURLException {
-		final String outDir = args.length > 1 ? args[1] : "."+File.separator+"OpenSkyData";
-		int timeBetweenScrapes = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+		List<String> positional = new ArrayList<String>();
+		boolean toKafka = false;
+		for(String arg : args) {
+			if(arg.equals("-kafka")) {
+				toKafka = true;
+			} else {
+				positional.add(arg);
+			}
+		}
+		final String outDir = positional.size() > 1 ? positional.get(1)
+				: toKafka ? null : "."+File.separator+"OpenSkyData";
+		int timeBetweenScrapes = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 120;
 		assert timeBetweenScrapes > 0;
 		
-		new File(outDir).mkdirs();
+		if(outDir != null) {
+			new File(outDir).mkdirs();
+		}
 		
 		ScheduledExecutorService ses = Executors.newScheduledThreadPool(1);
-		Runnable downloader = new Runnable () {
-			public void run() { try {
-				getOpenSkyData(outDir);
-			} catch (IOException e) {
-				System.out.println(System.currentTimeMillis()/1000+" "+e);
-			} }
-		};
+		Runnable downloader;
+		if(toKafka) {
+			final KafkaProducer<Object, Object> producer = ReadOpenSkyFile.newProducer(null);
+			final IngestPipeline pipeline = new IngestPipeline(producer, pipelineThreads, pipelineThreads,
+					pipelineThreads, pipelineQueueSize, maxInFlight, pipelineChunkSize);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					producer.close();
+				}
+			});
+			downloader = new Runnable () {
+				public void run() { try {
+					streamOpenSkyData(pipeline, outDir);
+				} catch (IOException e) {
+					System.out.println(System.currentTimeMillis()/1000+" "+e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException e) {
+					// An exception would cancel the remaining scrapes
+					System.out.println(System.currentTimeMillis()/1000+" "+e);
+				} }
+			};
+		} else {
+			downloader = new Runnable () {
+				public void run() { try {
+					getOpenSkyData(outDir);
+				} catch (IOException e) {
+					System.out.println(System.currentTimeMillis()/1000+" "+e);
+				} }
+			};
+		}
 		
 		ses.scheduleAtFixedRate(downloader,	0, timeBetweenScrapes, TimeUnit.SECONDS);
 	}
@@ -70,4 +137,96 @@ public class OpenSkyScraper {
 		fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
 		fos.close();
 	}
+	
+	/**
+	 * This method is the scraping task for -kafka. The response is parsed while it downloads,
+	 * and its states are sent to Kafka. If outDir is set, the response is also stored there,
+	 * compressed, as it passes through.
+	 * @param pipeline The pipeline that sends states to Kafka
+	 * @param outDir The directory that responses are stored in, or null to not store them
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void streamOpenSkyData(IngestPipeline pipeline, String outDir)
+			throws IOException, InterruptedException {
+		long currentTime = System.currentTimeMillis()/1000;//current UNIX timestamp
+		String fileName = "OpenSkyState"+Long.toString(currentTime);
+		
+		HttpURLConnection connection = (HttpURLConnection)new URL("https://opensky-network.org/api/states/all").openConnection();
+		connection.setConnectTimeout(10000);
+		connection.setReadTimeout(30000);
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		
+		InputStream in = connection.getInputStream();
+		if("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+			in = new GZIPInputStream(in, 64*1024);
+		}
+		OutputStream archive = null;
+		if(outDir != null) {
+			archive = new GZIPOutputStream(new FileOutputStream(outDir+File.separator+fileName+".json.gz"), 64*1024);
+			in = new TeeInputStream(in, archive);
+		}
+		
+		JsonStateReader reader = new JsonStateReader(in);
+		try {
+			long states = pipeline.sendAll(reader);
+			// Marks the hours that have ended since the last scrape as ingested
+			pipeline.finish();
+			if(archive != null) {
+				// Copy the rest of the response, after the states, to the archive
+				byte[] rest = new byte[4096];
+				while(in.read(rest) >= 0) {
+				}
+			}
+			System.out.println(currentTime+" "+states+" states sent");
+		} finally {
+			reader.close();
+			if(archive != null) {
+				archive.close();
+			}
+		}
+	}
+	
+	/**
+	 * An input stream that copies everything read from it to an output stream.
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy;
+		
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) {
+				copy.write(b);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0) {
+				copy.write(b, off, n);
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped bytes must still be copied
+			byte[] skipped = new byte[(int)Math.min(n, 4096)];
+			int read = read(skipped, 0, skipped.length);
+			return Math.max(read, 0);
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }
@@ -0,0 +1,236 @@
+package processAirData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The layout of flight-state archives (".osky" files), shared by ArchiveWriter and
+ * ArchiveReader.
+ *
+ * An archive holds valid flight states in blocks, with every variable that FlightState has, so
+ * that they can be ingested again under a different schema. All the states of a block are from
+ * the same hour, and are sorted by full-resolution geohash, then time. A block stores each
+ * variable as a column, one after another:
+ *
+ *   geohash  varint of the difference from the previous state (the first from minGeohash)
+ *   time     zigzag varint of the difference from the previous state (the first from minTime)
+ *   lat      zigzag varint of the difference from the previous state, in units of 1e-7 degrees
+ *   lon      the same as lat
+ *   icao24   varint of (number of hex digits << 24 | value)
+ *   lastposupdate  zigzag varint of its difference from time, in milliseconds
+ *   a presence bitmap for each of the optionalFields, in order, then bitmaps of the values of
+ *     onground, alert, and spi. A bitmap has a bit per state, bit i in byte i/8.
+ *   a column for each of the other optionalFields, in order, with a value for each state that
+ *     has one:
+ *     velocity, heading, vertrate, baroaltitude, geoaltitude
+ *              zigzag varint, in units of 1/100 (m/s, degrees, or m)
+ *     callsign varint of its length in UTF-8 bytes, then the bytes
+ *     squawk   zigzag varint
+ *     lastcontact  zigzag varint of its difference from time, in milliseconds
+ *
+ * Sorting makes the geohash and position differences small, so most states take a handful of
+ * bytes, plus a few for each variable they have. The file starts with the magic number and the
+ * version. Version 1 archives have only the first five columns, and are still read. The file
+ * ends with a footer listing every block with its zone map, then the footer's
+ * offset and the magic number:
+ *
+ *   int blocks, then for each: long offset, int length, int hour, int rows,
+ *                              int minTime, int maxTime, int minGeohash, int maxGeohash
+ *   long footerOffset
+ *   int magic
+ *
+ * Readers use the zone maps to skip blocks outside the hours or region they want.
+ *
+ * @author Kevin Moss
+ *
+ */
+final class ArchiveFormat {
+
+	static final int magic = 0x4f534b59; // "OSKY"
+	static final String extension = ".osky";
+	static final int version = 2;
+	static final double fixedPoint = 1e7;
+	// Fixed-point scale of speeds, headings, and altitudes
+	static final double centi = 100;
+
+	// Variables that a valid state may lack, by CSV index (see FlightStateBatch)
+	static final int velocityField = 4, headingField = 5, vertrateField = 6, callsignField = 7;
+	static final int ongroundField = 8, alertField = 9, spiField = 10, squawkField = 11;
+	static final int baroaltitudeField = 12, geoaltitudeField = 13, lastcontactField = 15;
+	static final int[] optionalFields = {velocityField, headingField, vertrateField, callsignField,
+			ongroundField, alertField, spiField, squawkField, baroaltitudeField, geoaltitudeField, lastcontactField};
+	// Bits of a state's flags above the presence bits of optionalFields: the boolean values
+	static final int ongroundBit = 1 << optionalFields.length, alertBit = ongroundBit << 1, spiBit = alertBit << 1;
+
+	private ArchiveFormat() {
+	}
+
+	/**
+	 * A block's entry in the footer.
+	 */
+	static class Block {
+		long offset;
+		int length, hour, rows, minTime, maxTime, minGeohash, maxGeohash;
+	}
+
+	/**
+	 * @return Whether a variable is one of the booleans, whose values are stored as bitmaps
+	 */
+	static boolean isBoolean(int field) {
+		return field == ongroundField || field == alertField || field == spiField;
+	}
+
+	/**
+	 * @param field One of optionalFields other than callsign and the booleans
+	 * @param value Its value
+	 * @param time The time of the state
+	 * @return The value as stored
+	 */
+	static int encode(int field, double value, int time) {
+		switch(field) {
+		case squawkField:
+			return (int)value;
+		case lastcontactField:
+			return millisAfter(value, time);
+		default:
+			return (int)Math.round(value*centi);
+		}
+	}
+
+	/**
+	 * Reverses encode.
+	 */
+	static double decode(int field, int stored, int time) {
+		switch(field) {
+		case squawkField:
+			return stored;
+		case lastcontactField:
+			return time+stored/1000.0;
+		default:
+			return stored/centi;
+		}
+	}
+
+	/**
+	 * @return The milliseconds from time to a time in seconds, as stored for lastposupdate and
+	 * lastcontact
+	 */
+	static int millisAfter(double seconds, int time) {
+		return (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round((seconds-time)*1000)));
+	}
+
+	/**
+	 * A growable byte array that varints are written to.
+	 */
+	static class Output {
+		byte[] bytes = new byte[1 << 16];
+		int size;
+
+		private void reserve(int n) {
+			while(size+n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, 2*bytes.length);
+			}
+		}
+
+		void write(int b) {
+			reserve(1);
+			bytes[size++] = (byte)b;
+		}
+
+		void utf8(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			varint(b.length);
+			reserve(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+
+		void varint(long v) {
+			reserve(10);
+			while((v & ~0x7fL) != 0) {
+				bytes[size++] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			bytes[size++] = (byte)v;
+		}
+
+		void zigzag(long v) {
+			varint((v << 1) ^ (v >> 63));
+		}
+	}
+
+	/**
+	 * Reads varints from a byte array.
+	 */
+	static class Input {
+		final byte[] bytes;
+		int pos;
+
+		Input(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int read() {
+			return bytes[pos++] & 0xff;
+		}
+
+		String utf8() {
+			int n = (int)varint();
+			String s = new String(bytes, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+
+		long varint() {
+			long v = 0;
+			for(int shift = 0; ; shift += 7) {
+				byte b = bytes[pos++];
+				v |= (long)(b & 0x7f) << shift;
+				if(b >= 0) {
+					return v;
+				}
+			}
+		}
+
+		long zigzag() {
+			long v = varint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+
+	/**
+	 * Packs an icao24 address of up to 6 hex digits into an int.
+	 * @return The packed address, or -1 if it isn't hexadecimal
+	 */
+	static int packIcao24(String icao24) {
+		int n = icao24.length();
+		if(n == 0 || n > 6) {
+			return -1;
+		}
+		int value = 0;
+		for(int i = 0; i < n; i++) {
+			int d = Character.digit(icao24.charAt(i), 16);
+			if(d < 0) {
+				return -1;
+			}
+			value = value << 4 | d;
+		}
+		return n << 24 | value;
+	}
+
+	private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Unpacks an address packed by packIcao24, in lower case.
+	 */
+	static String unpackIcao24(int packed) {
+		int n = packed >>> 24;
+		char[] c = new char[n];
+		for(int i = n-1; i >= 0; i--) {
+			c[i] = hexDigits[packed & 0xf];
+			packed >>>= 4;
+		}
+		return new String(c);
+	}
+
+}
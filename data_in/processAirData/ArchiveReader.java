@@ -0,0 +1,293 @@
+package processAirData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the flight states in an archive written by ArchiveWriter.
+ *
+ * The footer is read first. select narrows the states read to a range of hours and a range of
+ * geohashes, and blocks whose zone maps fall outside them are never read from disk, so one
+ * slice of a large archive can be replayed quickly.
+ *
+ * States come back as they were archived, with every variable they had, to the precision
+ * ArchiveFormat keeps, and icao24 in lower case. States of version 1 archives only have time,
+ * icao24, position, and geohash, and their last position update is their time, so they stay
+ * valid.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class ArchiveReader implements StateReader {
+
+	private final RandomAccessFile file;
+	private final int version;
+	private final List<ArchiveFormat.Block> blocks = new ArrayList<ArchiveFormat.Block>();
+	private int nextBlock;
+	private long startGeohash = 0, endGeohash = Long.MAX_VALUE;
+
+	// The block being read, decoded
+	private int rows, row;
+	private int[] time = new int[0], icao24 = new int[0], geohash = new int[0], lastposupdate = new int[0];
+	private double[] lat = new double[0], lon = new double[0];
+	// Presence bits of the optional variables and values of the booleans (see ArchiveFormat)
+	private int[] flags = new int[0];
+	// Stored values of the other optional variables, by their index in optionalFields
+	private final int[][] stored = new int[ArchiveFormat.optionalFields.length][0];
+	private String[] callsign = new String[0];
+
+	// Scratch space for next
+	private final double[] values = new double[16];
+	private final boolean[] present = new boolean[16];
+
+	/**
+	 * Opens an archive and reads its footer.
+	 * @param f An archive
+	 * @throws IOException if the file isn't an archive
+	 */
+	public ArchiveReader(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		try {
+			long length = file.length();
+			if(length < 20 || file.readInt() != ArchiveFormat.magic) {
+				throw new IOException("Not a flight-state archive: "+f);
+			}
+			version = file.readInt();
+			if(version < 1 || version > ArchiveFormat.version) {
+				throw new IOException("Unknown archive version "+version+": "+f);
+			}
+			file.seek(length-12);
+			long footer = file.readLong();
+			if(file.readInt() != ArchiveFormat.magic) {
+				throw new IOException("Archive is incomplete: "+f);
+			}
+			file.seek(footer);
+			int count = file.readInt();
+			for(int i = 0; i < count; i++) {
+				ArchiveFormat.Block b = new ArchiveFormat.Block();
+				b.offset = file.readLong();
+				b.length = file.readInt();
+				b.hour = file.readInt();
+				b.rows = file.readInt();
+				b.minTime = file.readInt();
+				b.maxTime = file.readInt();
+				b.minGeohash = file.readInt();
+				b.maxGeohash = file.readInt();
+				blocks.add(b);
+			}
+		} catch(IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Restricts the states read to some hours and a range of geohashes. Must be called before
+	 * reading.
+	 * @param firstHour The first hour to read (UNIX time / 3600)
+	 * @param lastHour The last hour to read
+	 * @param startGeohash The first full-resolution geohash to read
+	 * @param endGeohash The geohash after the last one to read
+	 */
+	public void select(int firstHour, int lastHour, long startGeohash, long endGeohash) {
+		List<ArchiveFormat.Block> selected = new ArrayList<ArchiveFormat.Block>();
+		for(ArchiveFormat.Block b : blocks) {
+			if(b.hour >= firstHour && b.hour <= lastHour && b.maxGeohash >= startGeohash && b.minGeohash < endGeohash) {
+				selected.add(b);
+			}
+		}
+		blocks.clear();
+		blocks.addAll(selected);
+		this.startGeohash = startGeohash;
+		this.endGeohash = endGeohash;
+	}
+
+	/**
+	 * @return The number of states in the selected blocks
+	 */
+	public long getSelectedRows() {
+		long n = 0;
+		for(ArchiveFormat.Block b : blocks) {
+			n += b.rows;
+		}
+		return n;
+	}
+
+	/**
+	 * Moves to the next selected state.
+	 * @return False at the end of the selected blocks
+	 */
+	private boolean nextRow() throws IOException {
+		while(true) {
+			while(row < rows) {
+				if(geohash[row] >= startGeohash && geohash[row] < endGeohash) {
+					return true;
+				}
+				row++;
+			}
+			if(nextBlock == blocks.size()) {
+				return false;
+			}
+			readBlock(blocks.get(nextBlock++));
+		}
+	}
+
+	private void readBlock(ArchiveFormat.Block b) throws IOException {
+		byte[] bytes = new byte[b.length];
+		file.seek(b.offset);
+		file.readFully(bytes);
+		ArchiveFormat.Input in = new ArchiveFormat.Input(bytes);
+		rows = b.rows;
+		row = 0;
+		if(time.length < rows) {
+			time = new int[rows];
+			icao24 = new int[rows];
+			geohash = new int[rows];
+			lastposupdate = new int[rows];
+			lat = new double[rows];
+			lon = new double[rows];
+			flags = new int[rows];
+			callsign = new String[rows];
+			for(int k = 0; k < stored.length; k++) {
+				stored[k] = new int[rows];
+			}
+		}
+		long prev = b.minGeohash;
+		for(int i = 0; i < rows; i++) {
+			prev += in.varint();
+			geohash[i] = (int)prev;
+		}
+		prev = b.minTime;
+		for(int i = 0; i < rows; i++) {
+			prev += in.zigzag();
+			time[i] = (int)prev;
+		}
+		prev = 0;
+		for(int i = 0; i < rows; i++) {
+			prev += in.zigzag();
+			lat[i] = prev/ArchiveFormat.fixedPoint;
+		}
+		prev = 0;
+		for(int i = 0; i < rows; i++) {
+			prev += in.zigzag();
+			lon[i] = prev/ArchiveFormat.fixedPoint;
+		}
+		for(int i = 0; i < rows; i++) {
+			icao24[i] = (int)in.varint();
+		}
+		if(version == 1) {
+			Arrays.fill(lastposupdate, 0, rows, 0);
+			Arrays.fill(flags, 0, rows, 0);
+			return;
+		}
+		for(int i = 0; i < rows; i++) {
+			lastposupdate[i] = (int)in.zigzag();
+		}
+
+		Arrays.fill(flags, 0, rows, 0);
+		for(int bit = 0; bit < ArchiveFormat.optionalFields.length; bit++) {
+			readBitmap(in, 1 << bit);
+		}
+		readBitmap(in, ArchiveFormat.ongroundBit);
+		readBitmap(in, ArchiveFormat.alertBit);
+		readBitmap(in, ArchiveFormat.spiBit);
+		for(int bit = 0; bit < ArchiveFormat.optionalFields.length; bit++) {
+			int field = ArchiveFormat.optionalFields[bit];
+			if(ArchiveFormat.isBoolean(field)) {
+				continue;
+			}
+			for(int i = 0; i < rows; i++) {
+				if((flags[i] & 1 << bit) == 0) {
+					continue;
+				}
+				if(field == ArchiveFormat.callsignField) {
+					callsign[i] = in.utf8();
+				} else {
+					stored[bit][i] = (int)in.zigzag();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a bitmap into a bit of each state's flags.
+	 */
+	private void readBitmap(ArchiveFormat.Input in, int bit) {
+		int b = 0;
+		for(int i = 0; i < rows; i++) {
+			if((i & 7) == 0) {
+				b = in.read();
+			}
+			if((b & 1 << (i & 7)) != 0) {
+				flags[i] |= bit;
+			}
+		}
+	}
+
+	/**
+	 * Puts the current state's variables, in CSV order, into values and present.
+	 * @return Its callsign
+	 */
+	private String unpack() {
+		int t = time[row];
+		int f = flags[row];
+		Arrays.fill(present, false);
+		present[0] = present[1] = present[2] = present[3] = present[14] = true;
+		values[0] = t;
+		values[2] = lat[row];
+		values[3] = lon[row];
+		values[14] = t+lastposupdate[row]/1000.0;
+		for(int bit = 0; bit < ArchiveFormat.optionalFields.length; bit++) {
+			int field = ArchiveFormat.optionalFields[bit];
+			present[field] = (f & 1 << bit) != 0;
+			if(!present[field] || field == ArchiveFormat.callsignField) {
+				values[field] = 0;
+			} else if(ArchiveFormat.isBoolean(field)) {
+				int valueBit = field == ArchiveFormat.ongroundField ? ArchiveFormat.ongroundBit
+						: field == ArchiveFormat.alertField ? ArchiveFormat.alertBit : ArchiveFormat.spiBit;
+				values[field] = (f & valueBit) != 0 ? 1 : 0;
+			} else {
+				values[field] = ArchiveFormat.decode(field, stored[bit][row], t);
+			}
+		}
+		return present[ArchiveFormat.callsignField] ? callsign[row] : "";
+	}
+
+	@Override
+	public FlightState next() throws IOException {
+		if(!nextRow()) {
+			return null;
+		}
+		String callsign = unpack();
+		String icao = ArchiveFormat.unpackIcao24(icao24[row]);
+		row++;
+		return new FlightState(values, present, icao, callsign);
+	}
+
+	@Override
+	public boolean fill(FlightStateBatch batch) throws IOException {
+		boolean any = false;
+		while(!batch.isFull() && nextRow()) {
+			String callsign = unpack();
+			batch.addArchived(values, present, ArchiveFormat.unpackIcao24(icao24[row]), callsign, geohash[row]);
+			row++;
+			any = true;
+		}
+		return any;
+	}
+
+	@Override
+	public long getMalformed() {
+		return 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
@@ -0,0 +1,377 @@
+package processAirData;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Writes valid flight states to an archive that can be ingested again much faster than the
+ * original CSV or JSON files (see ArchiveFormat for the layout, and ArchiveReader).
+ *
+ * An archive keeps every variable of a state, and its geohash, so that it can be re-ingested
+ * after the published schema changes. Positions are kept to 1e-7 degrees, speeds, headings, and
+ * altitudes to 1/100, and times to the millisecond. States are buffered by hour, and each hour
+ * is sorted by geohash when it is written, so that blocks cover small regions and compress
+ * well. A few hours are buffered at once, for files whose hours overlap; the oldest is written
+ * when another begins.
+ *
+ * Usage: java processAirData.ArchiveWriter out.osky path...
+ *   Converts every file under the paths (of any kind that ReadOpenSkyFile accepts) into one
+ *   archive.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class ArchiveWriter implements Closeable {
+
+	private static final int blockRows = 16384;
+	// Row indices are packed into 24 bits when an hour is sorted
+	private static final int maxHourRows = 1 << 22;
+	private static final int maxOpenHours = 4;
+
+	private final DataOutputStream out;
+	private long position;
+	private final List<ArchiveFormat.Block> blocks = new ArrayList<ArchiveFormat.Block>();
+	private final TreeMap<Integer, HourBuffer> hours = new TreeMap<Integer, HourBuffer>();
+	private final ArchiveFormat.Output column = new ArchiveFormat.Output();
+	private long written, skipped;
+
+	/**
+	 * The states of one hour that haven't been written yet, as they will be stored.
+	 */
+	private static class HourBuffer {
+		final int hour;
+		int size;
+		int[] time = new int[1024], icao24 = new int[1024], lat = new int[1024], lon = new int[1024];
+		int[] geohash = new int[1024], lastposupdate = new int[1024];
+		// Presence bits of the optional variables, and the values of the booleans
+		int[] flags = new int[1024];
+		// Stored values of the optional variables, by their index in optionalFields
+		final int[][] values = new int[ArchiveFormat.optionalFields.length][];
+		String[] callsign = new String[1024];
+
+		HourBuffer(int hour) {
+			this.hour = hour;
+			for(int k = 0; k < values.length; k++) {
+				values[k] = new int[1024];
+			}
+		}
+
+		void add(FlightStateBatch batch, int i, int icao) {
+			if(size == time.length) {
+				int n = 2*size;
+				time = Arrays.copyOf(time, n);
+				icao24 = Arrays.copyOf(icao24, n);
+				lat = Arrays.copyOf(lat, n);
+				lon = Arrays.copyOf(lon, n);
+				geohash = Arrays.copyOf(geohash, n);
+				lastposupdate = Arrays.copyOf(lastposupdate, n);
+				flags = Arrays.copyOf(flags, n);
+				callsign = Arrays.copyOf(callsign, n);
+				for(int k = 0; k < values.length; k++) {
+					values[k] = Arrays.copyOf(values[k], n);
+				}
+			}
+			int t = batch.time[i];
+			time[size] = t;
+			icao24[size] = icao;
+			lat[size] = (int)Math.round(batch.lat[i]*ArchiveFormat.fixedPoint);
+			lon[size] = (int)Math.round(batch.lon[i]*ArchiveFormat.fixedPoint);
+			geohash[size] = (int)batch.geohash[i];
+			lastposupdate[size] = ArchiveFormat.millisAfter(batch.lastposupdate[i], t);
+
+			int f = 0;
+			for(int k = 0; k < ArchiveFormat.optionalFields.length; k++) {
+				if(batch.isPresent(ArchiveFormat.optionalFields[k], i)) {
+					f |= 1 << k;
+				}
+			}
+			if(FlightStateBatch.flag(batch.onground, i)) {
+				f |= ArchiveFormat.ongroundBit;
+			}
+			if(FlightStateBatch.flag(batch.alert, i)) {
+				f |= ArchiveFormat.alertBit;
+			}
+			if(FlightStateBatch.flag(batch.spi, i)) {
+				f |= ArchiveFormat.spiBit;
+			}
+			flags[size] = f;
+			callsign[size] = batch.callsign[i] == null ? "" : batch.callsign[i];
+			for(int k = 0; k < values.length; k++) {
+				values[k][size] = encode(batch, i, ArchiveFormat.optionalFields[k]);
+			}
+			size++;
+		}
+	}
+
+	/**
+	 * @return A state's value of an optional variable, as stored, or 0 for callsign and the
+	 * booleans, which are stored otherwise
+	 */
+	private static int encode(FlightStateBatch batch, int i, int field) {
+		double value;
+		switch(field) {
+		case ArchiveFormat.velocityField: value = batch.velocity[i]; break;
+		case ArchiveFormat.headingField: value = batch.heading[i]; break;
+		case ArchiveFormat.vertrateField: value = batch.vertrate[i]; break;
+		case ArchiveFormat.squawkField: value = batch.squawk[i]; break;
+		case ArchiveFormat.baroaltitudeField: value = batch.baroaltitude[i]; break;
+		case ArchiveFormat.geoaltitudeField: value = batch.geoaltitude[i]; break;
+		case ArchiveFormat.lastcontactField: value = batch.lastcontact[i]; break;
+		default: return 0;
+		}
+		return ArchiveFormat.encode(field, value, batch.time[i]);
+	}
+
+	/**
+	 * Creates an archive.
+	 * @param f The file to write, replacing any file there
+	 * @throws IOException
+	 */
+	public ArchiveWriter(File f) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		out.writeInt(ArchiveFormat.magic);
+		out.writeInt(ArchiveFormat.version);
+		position = 8;
+	}
+
+	/**
+	 * Adds the states of a batch. They should have been validated and geohashed.
+	 * States whose icao24 isn't hexadecimal can't be archived, and are skipped.
+	 * @param batch A batch
+	 * @throws IOException
+	 */
+	public void add(FlightStateBatch batch) throws IOException {
+		for(int i = 0; i < batch.size(); i++) {
+			int icao = ArchiveFormat.packIcao24(batch.icao24[i]);
+			if(icao < 0) {
+				skipped++;
+				continue;
+			}
+			int hour = batch.getHour(i);
+			HourBuffer buffer = hours.get(hour);
+			if(buffer == null) {
+				if(hours.size() == maxOpenHours) {
+					writeHour(hours.pollFirstEntry().getValue());
+				}
+				buffer = new HourBuffer(hour);
+				hours.put(hour, buffer);
+			}
+			buffer.add(batch, i, icao);
+			if(buffer.size == maxHourRows) {
+				writeHour(buffer);
+				hours.remove(hour);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of states written to the archive so far
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return The number of states skipped because their icao24 isn't hexadecimal
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Sorts an hour's states by geohash and time, and writes them in blocks.
+	 */
+	private void writeHour(HourBuffer h) throws IOException {
+		long[] order = new long[h.size];
+		int hourStart = h.hour*3600;
+		for(int i = 0; i < h.size; i++) {
+			// Geohashes take the top 28 bits, so the sign bit is flipped to sort them unsigned
+			order[i] = ((long)h.geohash[i] << 36 | (long)(h.time[i]-hourStart) << 24 | i) ^ Long.MIN_VALUE;
+		}
+		Arrays.sort(order);
+		for(int from = 0; from < h.size; from += blockRows) {
+			writeBlock(h, order, from, Math.min(h.size, from+blockRows));
+		}
+		written += h.size;
+	}
+
+	private void writeBlock(HourBuffer h, long[] order, int from, int to) throws IOException {
+		ArchiveFormat.Block block = new ArchiveFormat.Block();
+		block.offset = position;
+		block.hour = h.hour;
+		block.rows = to-from;
+		block.minGeohash = h.geohash[row(order, from)];
+		block.maxGeohash = h.geohash[row(order, to-1)];
+		block.minTime = Integer.MAX_VALUE;
+		block.maxTime = Integer.MIN_VALUE;
+		for(int k = from; k < to; k++) {
+			int t = h.time[row(order, k)];
+			block.minTime = Math.min(block.minTime, t);
+			block.maxTime = Math.max(block.maxTime, t);
+		}
+
+		column.size = 0;
+		long prev = block.minGeohash;
+		for(int k = from; k < to; k++) {
+			int gh = h.geohash[row(order, k)];
+			column.varint(gh-prev);
+			prev = gh;
+		}
+		prev = block.minTime;
+		for(int k = from; k < to; k++) {
+			int t = h.time[row(order, k)];
+			column.zigzag(t-prev);
+			prev = t;
+		}
+		prev = 0;
+		for(int k = from; k < to; k++) {
+			int la = h.lat[row(order, k)];
+			column.zigzag(la-prev);
+			prev = la;
+		}
+		prev = 0;
+		for(int k = from; k < to; k++) {
+			int lo = h.lon[row(order, k)];
+			column.zigzag(lo-prev);
+			prev = lo;
+		}
+		for(int k = from; k < to; k++) {
+			column.varint(h.icao24[row(order, k)]);
+		}
+		for(int k = from; k < to; k++) {
+			column.zigzag(h.lastposupdate[row(order, k)]);
+		}
+
+		// Presence bitmaps of the optional variables, then the values of the booleans
+		for(int bit = 0; bit < ArchiveFormat.optionalFields.length; bit++) {
+			writeBitmap(h.flags, 1 << bit, order, from, to);
+		}
+		writeBitmap(h.flags, ArchiveFormat.ongroundBit, order, from, to);
+		writeBitmap(h.flags, ArchiveFormat.alertBit, order, from, to);
+		writeBitmap(h.flags, ArchiveFormat.spiBit, order, from, to);
+		for(int bit = 0; bit < ArchiveFormat.optionalFields.length; bit++) {
+			int field = ArchiveFormat.optionalFields[bit];
+			if(ArchiveFormat.isBoolean(field)) {
+				continue;
+			}
+			for(int k = from; k < to; k++) {
+				int r = row(order, k);
+				if((h.flags[r] & 1 << bit) == 0) {
+					continue;
+				}
+				if(field == ArchiveFormat.callsignField) {
+					column.utf8(h.callsign[r]);
+				} else {
+					column.zigzag(h.values[bit][r]);
+				}
+			}
+		}
+
+		out.write(column.bytes, 0, column.size);
+		block.length = column.size;
+		position += column.size;
+		blocks.add(block);
+	}
+
+	/**
+	 * Writes a bit of each state's flags, in block order, as a bitmap.
+	 */
+	private void writeBitmap(int[] flags, int bit, long[] order, int from, int to) {
+		int b = 0;
+		for(int k = from; k < to; k++) {
+			if((flags[row(order, k)] & bit) != 0) {
+				b |= 1 << ((k-from) & 7);
+			}
+			if(((k-from) & 7) == 7) {
+				column.write(b);
+				b = 0;
+			}
+		}
+		if(((to-from) & 7) != 0) {
+			column.write(b);
+		}
+	}
+
+	private static int row(long[] order, int k) {
+		return (int)(order[k] & 0xffffff);
+	}
+
+	/**
+	 * Writes the buffered hours and the footer, then closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			while(!hours.isEmpty()) {
+				writeHour(hours.pollFirstEntry().getValue());
+			}
+			long footer = position;
+			out.writeInt(blocks.size());
+			for(ArchiveFormat.Block b : blocks) {
+				out.writeLong(b.offset);
+				out.writeInt(b.length);
+				out.writeInt(b.hour);
+				out.writeInt(b.rows);
+				out.writeInt(b.minTime);
+				out.writeInt(b.maxTime);
+				out.writeInt(b.minGeohash);
+				out.writeInt(b.maxGeohash);
+			}
+			out.writeLong(footer);
+			out.writeInt(ArchiveFormat.magic);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Converts files to an archive.
+	 * @param args The archive to write, then files or directories to read
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			throw new IllegalArgumentException("Usage: ArchiveWriter out"+ArchiveFormat.extension+" path...");
+		}
+		List<File> files = new ArrayList<File>();
+		for(int i = 1; i < args.length; i++) {
+			ReadOpenSkyFile.addFiles(new File(args[i]), files);
+		}
+
+		long start = System.currentTimeMillis();
+		long read = 0, invalid = 0, malformed = 0;
+		FlightStateBatch batch = new FlightStateBatch(1000);
+		ArchiveWriter writer = new ArchiveWriter(new File(args[0]));
+		try {
+			for(File f : files) {
+				StateReader reader = ReadOpenSkyFile.openReader(f);
+				try {
+					while(reader.fill(batch)) {
+						read += batch.size();
+						invalid += batch.retainValid();
+						batch.computeGeohashes();
+						writer.add(batch);
+						batch.clear();
+					}
+					malformed += reader.getMalformed();
+				} finally {
+					reader.close();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		System.out.println("Archived "+writer.getWritten()+" of "+read+" states ("+invalid+" invalid, "
+				+writer.getSkipped()+" without a hexadecimal icao24, "+malformed+" malformed lines) in "
+				+(System.currentTimeMillis()-start)/1000.0+" s; "+new File(args[0]).length()+" bytes.");
+	}
+
+}
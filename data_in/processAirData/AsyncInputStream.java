@@ -0,0 +1,157 @@
+package processAirData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream on a thread of its own, a few chunks ahead of the reader.
+ *
+ * Wrapping a GZIPInputStream in one moves inflation to that thread, so a compressed file is
+ * inflated while the previous chunk is being parsed. At most a few chunks are buffered; the
+ * thread waits when they haven't been read yet. Errors in the other stream are thrown by read.
+ * Once close returns, the thread no longer reads the other stream.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class AsyncInputStream extends InputStream {
+
+	private static final int chunkSize = 256*1024;
+	private static final int chunksAhead = 4;
+
+	// Marks the end of the stream
+	private static final byte[] end = new byte[0];
+
+	private final InputStream in;
+	private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(chunksAhead);
+	private final Thread thread;
+	private volatile IOException error;
+
+	private byte[] chunk;
+	private int pos;
+	private boolean done;
+
+	/**
+	 * Starts reading a stream.
+	 * @param in The stream. It is closed when this stream is closed.
+	 * @param name A name for the thread
+	 */
+	public AsyncInputStream(InputStream in, String name) {
+		this.in = in;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				fill();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void fill() {
+		try {
+			try {
+				while(true) {
+					byte[] buf = new byte[chunkSize];
+					int n = 0;
+					while(n < buf.length) {
+						int r = in.read(buf, n, buf.length-n);
+						if(r < 0) {
+							break;
+						}
+						n += r;
+					}
+					if(n > 0) {
+						chunks.put(n == buf.length ? buf : Arrays.copyOf(buf, n));
+					}
+					if(n < buf.length) {
+						break;
+					}
+				}
+			} catch(IOException e) {
+				error = e;
+			} catch(RuntimeException e) {
+				error = new IOException(e);
+			}
+			chunks.put(end);
+		} catch(InterruptedException e) {
+			// The stream was closed
+		}
+	}
+
+	/**
+	 * Makes sure there is a chunk with unread bytes.
+	 * @return False at the end of the stream
+	 */
+	private boolean next() throws IOException {
+		if(done) {
+			return false;
+		}
+		if(chunk != null && pos < chunk.length) {
+			return true;
+		}
+		try {
+			chunk = chunks.take();
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		pos = 0;
+		if(chunk == end) {
+			done = true;
+			if(error != null) {
+				throw error;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!next()) {
+			return -1;
+		}
+		return chunk[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!next()) {
+			return -1;
+		}
+		int n = Math.min(len, chunk.length-pos);
+		System.arraycopy(chunk, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * Stops the thread, and waits for it before closing the other stream. The other stream may
+	 * be shared, such as a file inside a tar archive, and the next reader of it must not race
+	 * a read still in progress. The thread stops at its next chunk at the latest.
+	 */
+	@Override
+	public void close() throws IOException {
+		done = true;
+		thread.interrupt();
+		boolean interrupted = false;
+		while(thread.isAlive()) {
+			try {
+				thread.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		in.close();
+	}
+
+}
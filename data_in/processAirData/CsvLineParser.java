@@ -0,0 +1,196 @@
+package processAirData;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses lines of an OpenSky CSV file straight from bytes.
+ *
+ * Numbers are parsed in place, without making a String per field. Only icao24 and callsign
+ * become Strings. Columns are matched to FlightState variables through a precomputed table,
+ * as built by ReadOpenSkyFile.csvColumns, so files with columns in any order parse the same
+ * way as the default order.
+ *
+ * A parser reuses its buffers, so it must only be used by one thread.
+ *
+ * @author Kevin Moss
+ *
+ */
+final class CsvLineParser {
+
+	private static final int fields = 16;
+	private static final int icao24Field = 1, callsignField = 7;
+	private static final int ongroundField = 8, alertField = 9, spiField = 10;
+
+	// Powers of ten that doubles represent exactly
+	private static final double[] powersOfTen = new double[23];
+	static {
+		powersOfTen[0] = 1;
+		for(int i = 1; i < powersOfTen.length; i++) {
+			powersOfTen[i] = powersOfTen[i-1]*10;
+		}
+	}
+
+	private final int[] columns;
+	private final double[] values = new double[fields];
+	private final boolean[] present = new boolean[fields];
+	private String icao24, callsign;
+	private byte[] scratch = new byte[32];
+
+	/**
+	 * @param columns For each column of the file, the index of the FlightState variable it holds
+	 * (in the default CSV order), or -1 if it is ignored.
+	 */
+	CsvLineParser(int[] columns) {
+		this.columns = columns;
+	}
+
+	/**
+	 * Parses one line.
+	 * @param buf A buffer holding the line
+	 * @param start Index of the line's first byte
+	 * @param end Index just past the line's last byte, not counting the line terminator
+	 * @return A FlightState
+	 * @throws NumberFormatException if a numeric field isn't a number
+	 */
+	FlightState parse(ByteBuffer buf, int start, int end) {
+		parseFields(buf, start, end);
+		return new FlightState(values, present, icao24, callsign);
+	}
+
+	/**
+	 * Parses one line and appends it to a batch.
+	 * @param buf A buffer holding the line
+	 * @param start Index of the line's first byte
+	 * @param end Index just past the line's last byte, not counting the line terminator
+	 * @param batch A batch that isn't full
+	 * @throws NumberFormatException if a numeric field isn't a number. Nothing is appended.
+	 */
+	void parseInto(ByteBuffer buf, int start, int end, FlightStateBatch batch) {
+		parseFields(buf, start, end);
+		batch.add(values, present, icao24, callsign);
+	}
+
+	private void parseFields(ByteBuffer buf, int start, int end) {
+		Arrays.fill(present, false);
+		icao24 = "";
+		callsign = "";
+
+		int column = 0, fieldStart = start;
+		for(int i = start; i <= end; i++) {
+			if(i == end || buf.get(i) == ',') {
+				if(column < columns.length && columns[column] >= 0) {
+					field(columns[column], buf, fieldStart, i);
+				}
+				column++;
+				fieldStart = i+1;
+			}
+		}
+	}
+
+	/**
+	 * Parses a single field into its slot.
+	 */
+	private void field(int field, ByteBuffer buf, int start, int end) {
+		while(start < end && buf.get(start) <= ' ') {
+			start++;
+		}
+		while(end > start && buf.get(end-1) <= ' ') {
+			end--;
+		}
+		switch(field) {
+		case icao24Field: icao24 = ascii(buf, start, end); return;
+		case callsignField: callsign = ascii(buf, start, end); return;
+		case ongroundField:
+		case alertField:
+		case spiField:
+			// As with Boolean.parseBoolean, anything but "true" is false
+			values[field] = isTrue(buf, start, end) ? 1 : 0;
+			present[field] = true;
+			return;
+		default:
+			if(start == end || isNull(buf, start, end)) {
+				return;
+			}
+			values[field] = parseNumber(buf, start, end);
+			present[field] = true;
+		}
+	}
+
+	private static boolean isTrue(ByteBuffer buf, int start, int end) {
+		return end-start == 4 && (buf.get(start) | 0x20) == 't' && (buf.get(start+1) | 0x20) == 'r'
+				&& (buf.get(start+2) | 0x20) == 'u' && (buf.get(start+3) | 0x20) == 'e';
+	}
+
+	private static boolean isNull(ByteBuffer buf, int start, int end) {
+		return end-start == 4 && buf.get(start) == 'n' && buf.get(start+1) == 'u'
+				&& buf.get(start+2) == 'l' && buf.get(start+3) == 'l';
+	}
+
+	private String ascii(ByteBuffer buf, int start, int end) {
+		if(start == end) {
+			return "";
+		}
+		return new String(copy(buf, start, end), 0, end-start, StandardCharsets.US_ASCII);
+	}
+
+	private byte[] copy(ByteBuffer buf, int start, int end) {
+		if(scratch.length < end-start) {
+			scratch = new byte[2*(end-start)];
+		}
+		for(int i = start; i < end; i++) {
+			scratch[i-start] = buf.get(i);
+		}
+		return scratch;
+	}
+
+	/**
+	 * Parses a decimal number. Plain decimals with up to 15 significant digits are parsed
+	 * directly: the digits and the power of ten are both exact doubles, so one division gives
+	 * the correctly rounded result, just like Double.parseDouble. Anything else (exponents,
+	 * very long numbers, NaN) falls back to Double.parseDouble.
+	 */
+	static double parseNumber(ByteBuffer buf, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if(buf.get(i) == '-' || buf.get(i) == '+') {
+			negative = buf.get(i) == '-';
+			i++;
+		}
+		long digits = 0;
+		int significant = 0, scale = 0;
+		boolean sawDigit = false, sawPoint = false;
+		for(; i < end; i++) {
+			byte c = buf.get(i);
+			if(c >= '0' && c <= '9') {
+				sawDigit = true;
+				digits = digits*10 + (c-'0');
+				if(digits != 0) {
+					significant++;
+				}
+				if(sawPoint) {
+					scale++;
+				}
+			} else if(c == '.' && !sawPoint) {
+				sawPoint = true;
+			} else {
+				return slowParse(buf, start, end);
+			}
+		}
+		if(!sawDigit || significant > 15 || scale >= powersOfTen.length) {
+			return slowParse(buf, start, end);
+		}
+		double value = digits/powersOfTen[scale];
+		return negative ? -value : value;
+	}
+
+	private static double slowParse(ByteBuffer buf, int start, int end) {
+		byte[] text = new byte[end-start];
+		for(int i = start; i < end; i++) {
+			text[i-start] = buf.get(i);
+		}
+		return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+	}
+
+}
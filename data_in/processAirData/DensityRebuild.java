@@ -0,0 +1,217 @@
+package processAirData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+
+import geoAirData.CellLayout;
+
+/**
+ * Recomputes the density rows of whole hours from the states stored in
+ * "openskyproject.flightcells" (see DensityRollup for both tables).
+ *
+ * A state is stored once however many times it is written, so the counts rebuilt from the
+ * stored states are right even after an hour has been ingested twice. IngestMarker rebuilds
+ * each hour this way before closing it.
+ *
+ * Only the partitions that have states are read. They are listed from the hour's announced
+ * boxes in "openskyproject.occupiedcells" (see OccupancyCache), which has the same partitions
+ * as the states, so a busy hour reads a few thousand partitions rather than all 65536. The
+ * listing is one paged query over the table's partition keys, filtered to the hour, and needs
+ * Cassandra 3.10 or later. An hour with no announced boxes may have been ingested before
+ * occupancy was tracked, so all of its partitions are read instead.
+ *
+ * Each partition is read on one of a few threads and counted at every supported resolution,
+ * and its rows are written asynchronously with a bounded number of writes in flight. Rows are
+ * overwritten, so a rebuild can simply be rerun.
+ *
+ * Usage: java processAirData.DensityRebuild contactPoint firstHour lastHour
+ *   firstHour and lastHour are UNIX time / 3600.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class DensityRebuild {
+
+	private static final String scanQuery = "SELECT geohash, lat, lon FROM openskyproject.flightcells"
+			+ " WHERE timeinterval = ? AND prefix = ?;";
+	private static final String occupiedQuery = "SELECT DISTINCT timeinterval, prefix"
+			+ " FROM openskyproject.occupiedcells WHERE timeinterval = ? ALLOW FILTERING;";
+	private static final String insertQuery = "INSERT INTO openskyproject.density"
+			+ " (timeinterval, resolution, prefix, geohash, count, lat, lon) VALUES (?, ?, ?, ?, ?, ?, ?);";
+
+	private static final int partitions = 1 << 4*CellLayout.partitionResolution;
+	private static final int threads = 16;
+	private static final int maxInFlight = 256;
+
+	private static final Executor sameThread = new Executor() {
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	private final Session session;
+	private final PreparedStatement scan, occupied, insert;
+	private final ExecutorService readers;
+	private final Semaphore inFlight = new Semaphore(maxInFlight);
+	private final AtomicLong failed = new AtomicLong();
+
+	public static void main(String[] args) throws InterruptedException {
+		if(args.length != 3) {
+			throw new IllegalArgumentException("Usage: DensityRebuild contactPoint firstHour lastHour");
+		}
+		int firstHour = Integer.parseInt(args[1]);
+		int lastHour = Integer.parseInt(args[2]);
+
+		Cluster cluster = Cluster.builder().addContactPoint(args[0]).withPort(9042).build();
+		DensityRebuild rebuild = null;
+		try {
+			rebuild = new DensityRebuild(cluster.connect());
+			for(int hour = firstHour; hour <= lastHour; hour++) {
+				System.out.println("Hour "+hour+(rebuild.rebuild(hour) ? " rebuilt" : " failed"));
+			}
+		} finally {
+			if(rebuild != null) {
+				rebuild.close();
+			}
+			cluster.close();
+		}
+	}
+
+	/**
+	 * @param session A connected session. The rebuild doesn't close it.
+	 */
+	public DensityRebuild(Session session) {
+		this.session = session;
+		scan = session.prepare(scanQuery);
+		occupied = session.prepare(occupiedQuery);
+		insert = session.prepare(insertQuery);
+		readers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Recomputes every density row of an hour, and waits until they are written.
+	 * @param hour An hour (UNIX time / 3600)
+	 * @return Whether every partition was read and every row written. If not, the hour's rows
+	 * may be left as they were, and the rebuild should be rerun.
+	 * @throws InterruptedException
+	 */
+	public boolean rebuild(final int hour) throws InterruptedException {
+		final int[] prefixes;
+		try {
+			prefixes = occupiedPartitions(hour);
+		} catch(RuntimeException e) {
+			System.out.println("Could not list the partitions of hour "+hour+": "+e);
+			return false;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		long failedBefore = failed.get();
+		List<Future<?>> tasks = new ArrayList<Future<?>>(threads);
+		for(int i = 0; i < threads; i++) {
+			tasks.add(readers.submit(new Runnable() {
+				public void run() {
+					int i;
+					while((i = next.getAndIncrement()) < prefixes.length) {
+						rebuild(hour, prefixes[i]);
+					}
+				}
+			}));
+		}
+		boolean read = true;
+		for(Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch(ExecutionException e) {
+				if(read) {
+					System.out.println("Could not read hour "+hour+": "+e.getCause());
+				}
+				read = false;
+			}
+		}
+		// Wait for the last writes
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+		return read && failed.get() == failedBefore;
+	}
+
+	/**
+	 * Lists the partitions that have states in an hour, from its announced boxes.
+	 * @return The partitions, or every partition if none were announced
+	 */
+	private int[] occupiedPartitions(int hour) {
+		List<Integer> announced = new ArrayList<Integer>();
+		for(Row row : session.execute(occupied.bind(hour).setFetchSize(5000))) {
+			announced.add(row.getInt(1));
+		}
+		int[] prefixes = new int[announced.isEmpty() ? partitions : announced.size()];
+		for(int i = 0; i < prefixes.length; i++) {
+			prefixes[i] = announced.isEmpty() ? i : announced.get(i);
+		}
+		return prefixes;
+	}
+
+	/**
+	 * Counts the states of one partition of an hour, and writes a row for each box they are in.
+	 */
+	private void rebuild(int hour, int prefix) {
+		Map<Long, DensityRollup.CellDensity> boxes = new HashMap<Long, DensityRollup.CellDensity>();
+		for(Row row : session.execute(scan.bind(hour, prefix).setFetchSize(5000))) {
+			long geohash = row.getInt(0);
+			double lat = row.getDouble(1), lon = row.getDouble(2);
+			for(int res = CellLayout.partitionResolution; res <= CellLayout.fullResolution; res++) {
+				long key = DensityRollup.boxKey(hour, res, geohash >>> 4*(CellLayout.fullResolution-res));
+				DensityRollup.CellDensity box = boxes.get(key);
+				if(box == null) {
+					box = new DensityRollup.CellDensity();
+					boxes.put(key, box);
+				}
+				box.count++;
+				box.sumLat += lat;
+				box.sumLon += lon;
+			}
+		}
+
+		for(Map.Entry<Long, DensityRollup.CellDensity> e : boxes.entrySet()) {
+			long key = e.getKey();
+			DensityRollup.CellDensity box = e.getValue();
+			inFlight.acquireUninterruptibly();
+			final ResultSetFuture write = session.executeAsync(insert.bind(hour, (int)(key >>> 28) & 0xf, prefix,
+					(int)(key & 0x0fffffffL), box.count, box.sumLat/box.count, box.sumLon/box.count));
+			write.addListener(new Runnable() {
+				public void run() {
+					inFlight.release();
+					try {
+						write.getUninterruptibly();
+					} catch(RuntimeException e) {
+						if(failed.getAndIncrement() == 0) {
+							System.out.println("Write failed: "+e);
+						}
+					}
+				}
+			}, sameThread);
+		}
+	}
+
+	/**
+	 * Stops the reader threads.
+	 */
+	public void close() {
+		readers.shutdownNow();
+	}
+
+}
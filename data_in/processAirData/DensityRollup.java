@@ -0,0 +1,280 @@
+package processAirData;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.streams.Consumed;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.kstream.Aggregator;
+import org.apache.kafka.streams.kstream.Initializer;
+import org.apache.kafka.streams.kstream.KeyValueMapper;
+import org.apache.kafka.streams.kstream.Predicate;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.TimestampExtractor;
+
+import geoAirData.CellLayout;
+import io.confluent.kafka.serializers.KafkaAvroDeserializer;
+import io.confluent.kafka.serializers.KafkaAvroSerializer;
+
+/**
+ * A Kafka Streams application that keeps hourly flight-state counts for every geohash box.
+ *
+ * A heat map only needs to know how many states fall in each box, not where each one is.
+ * This application reads the states on FlightState.topic and counts them per
+ * (hour, resolution, box) at every supported resolution, along with the average position of
+ * the states in the box. Updated counts are published on "opensky-density", and the Cassandra
+ * sink writes them to:
+ *
+ *   CREATE TABLE openskyproject.density (
+ *     timeinterval int, resolution int, prefix int, geohash int,
+ *     count bigint, lat double, lon double,
+ *     PRIMARY KEY ((timeinterval, resolution, prefix), geohash));
+ *
+ * where prefix is the box's partition in "geoAirData.CellLayout". The servlet's density mode
+ * reads these rows instead of raw states.
+ *
+ * Counts only ever grow, so states written twice would be counted twice. The application only
+ * counts states of the current and the previous hour, which no ingest run can have closed yet
+ * (see IngestPipeline.finish), and counts each of them once:
+ *   - messages are processed exactly once, so redelivered states aren't counted again, and
+ *   - states of older hours, such as those of a backfill, a rerun, or a replayed archive, are
+ *     skipped. IngestMarker has DensityRebuild recompute each hour from its stored states
+ *     before closing it, so replaying an hour rewrites its counts rather than adding to them.
+ * Counts are kept in hourly windows of the states' own times, which are dropped from the state
+ * store retentionHours after they end. The Cassandra sink should read with
+ * isolation.level=read_committed, so that it skips updates from aborted transactions.
+ *
+ * Usage: java processAirData.DensityRollup
+ * Like ReadOpenSkyFile, it expects Kafka at localhost:9092 and the schema registry at
+ * localhost:8081. It runs until it is killed.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class DensityRollup {
+
+	public static final String densityTopic = "opensky-density";
+	// Also the consumer group whose progress IngestMarker waits for
+	public static final String applicationId = "opensky-density-rollup";
+
+	private static final long hourMillis = 3600*1000L;
+	private static final int retentionHours = 3;
+
+	private static String densitySchema = "{\"type\":\"record\",\"name\":\"density\",\"fields\":"
+			+ "[{\"name\":\"timeinterval\",\"type\":\"int\"},"
+			+ "{\"name\":\"resolution\",\"type\":\"int\"},"
+			+ "{\"name\":\"prefix\",\"type\":\"int\"},"
+			+ "{\"name\":\"geohash\",\"type\":\"int\"},"
+			+ "{\"name\":\"count\",\"type\":\"long\"},"
+			+ "{\"name\":\"lat\",\"type\":\"double\"},"
+			+ "{\"name\":\"lon\",\"type\":\"double\"}]}";
+	protected final static Schema schema = new Schema.Parser().parse(densitySchema);
+
+	public static void main(String[] args) {
+		Properties props = new Properties();
+		props.put(StreamsConfig.APPLICATION_ID_CONFIG, applicationId);
+		props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		props.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.Long().getClass());
+		props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, CellDensitySerde.class);
+		props.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, StreamsConfig.EXACTLY_ONCE);
+		// Counts for a busy box change many times a second. Only publish every so often.
+		props.put(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG, 30000);
+
+		Map<String, Object> registry = new HashMap<String, Object>();
+		registry.put("schema.registry.url", "http://localhost:8081");
+		Serde<Object> avroKeys = avroSerde(registry, true);
+		Serde<Object> avroValues = avroSerde(registry, false);
+
+		StreamsBuilder builder = new StreamsBuilder();
+		builder.stream(FlightState.topic, Consumed.with(avroKeys, avroValues).withTimestampExtractor(new StateTime()))
+			.filter(new Predicate<Object, Object>() {
+				public boolean test(Object key, Object value) {
+					return isLive((Integer)((GenericRecord)value).get("timeinterval"));
+				}
+			})
+			.flatMap(new KeyValueMapper<Object, Object, Iterable<KeyValue<Long, CellDensity>>>() {
+				public Iterable<KeyValue<Long, CellDensity>> apply(Object key, Object value) {
+					return boxesOf((GenericRecord)value);
+				}
+			})
+			.groupByKey()
+			.windowedBy(TimeWindows.of(hourMillis).until(hourMillis*(1+retentionHours)))
+			.aggregate(new Initializer<CellDensity>() {
+				public CellDensity apply() {
+					return new CellDensity();
+				}
+			}, new Aggregator<Long, CellDensity, CellDensity>() {
+				public CellDensity apply(Long key, CellDensity state, CellDensity total) {
+					total.add(state);
+					return total;
+				}
+			})
+			.toStream()
+			.map(new KeyValueMapper<Windowed<Long>, CellDensity, KeyValue<Long, Object>>() {
+				public KeyValue<Long, Object> apply(Windowed<Long> key, CellDensity total) {
+					return new KeyValue<Long, Object>(key.key(), densityRecord(key.key(), total));
+				}
+			})
+			.to(densityTopic, Produced.with(Serdes.Long(), avroValues));
+
+		final KafkaStreams streams = new KafkaStreams(builder.build(), props);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				streams.close();
+			}
+		});
+		streams.start();
+	}
+
+	/**
+	 * Wraps Confluent's Avro serializer and deserializer, which speak to the schema registry.
+	 */
+	private static Serde<Object> avroSerde(Map<String, Object> config, boolean isKey) {
+		KafkaAvroSerializer serializer = new KafkaAvroSerializer();
+		KafkaAvroDeserializer deserializer = new KafkaAvroDeserializer();
+		serializer.configure(config, isKey);
+		deserializer.configure(config, isKey);
+		return Serdes.serdeFrom(serializer, deserializer);
+	}
+
+	/**
+	 * @param hour An hour (UNIX time / 3600)
+	 * @return Whether states of the hour are counted: only the current and the previous hour are
+	 */
+	static boolean isLive(int hour) {
+		return hour >= System.currentTimeMillis()/hourMillis - 1;
+	}
+
+	/**
+	 * Takes the time of a state as the time of its message, so that each hour's counts are in
+	 * the window of that hour.
+	 */
+	public static class StateTime implements TimestampExtractor {
+		public long extract(ConsumerRecord<Object, Object> record, long previousTimestamp) {
+			return 1000L*(Integer)((GenericRecord)record.value()).get("time");
+		}
+	}
+
+	/**
+	 * Packs an hour, a resolution, and a box into one key. Boxes have at most 28 bits.
+	 */
+	static long boxKey(int hour, int res, long cell) {
+		return ((long)hour << 32) | ((long)res << 28) | cell;
+	}
+
+	/**
+	 * Lists the boxes that a state falls in, one per supported resolution.
+	 * @param state A record from FlightState.topic
+	 * @return (box, one-state density) pairs
+	 */
+	static List<KeyValue<Long, CellDensity>> boxesOf(GenericRecord state) {
+		int hour = (Integer)state.get("timeinterval");
+		long geohash = (Integer)state.get("geohash");
+		CellDensity one = new CellDensity(1, (Double)state.get("lat"), (Double)state.get("lon"));
+
+		List<KeyValue<Long, CellDensity>> boxes = new ArrayList<KeyValue<Long, CellDensity>>(4);
+		for(int res = CellLayout.partitionResolution; res <= CellLayout.fullResolution; res++) {
+			long cell = geohash >>> 4*(CellLayout.fullResolution-res);
+			boxes.add(new KeyValue<Long, CellDensity>(boxKey(hour, res, cell), one));
+		}
+		return boxes;
+	}
+
+	/**
+	 * Produces the record published for a box's latest count.
+	 * @param key A key made by boxKey
+	 * @param total The box's running total
+	 * @return A record
+	 */
+	static GenericRecord densityRecord(long key, CellDensity total) {
+		int res = (int)(key >>> 28) & 0xf;
+		long cell = key & 0x0fffffffL;
+
+		GenericRecord record = new GenericData.Record(schema);
+		record.put("timeinterval", (int)(key >>> 32));
+		record.put("resolution", res);
+		record.put("prefix", CellLayout.partitionOf(CellLayout.firstOf(cell, res)));
+		record.put("geohash", (int)cell);
+		record.put("count", total.count);
+		record.put("lat", total.sumLat/total.count);
+		record.put("lon", total.sumLon/total.count);
+		return record;
+	}
+
+	/**
+	 * A running count of the states in a box, with the sums of their positions.
+	 */
+	public static class CellDensity {
+		long count;
+		double sumLat, sumLon;
+
+		public CellDensity() {
+		}
+
+		CellDensity(long count, double sumLat, double sumLon) {
+			this.count = count;
+			this.sumLat = sumLat;
+			this.sumLon = sumLon;
+		}
+
+		void add(CellDensity other) {
+			count += other.count;
+			sumLat += other.sumLat;
+			sumLon += other.sumLon;
+		}
+	}
+
+	/**
+	 * Stores a CellDensity as 24 bytes in the aggregation's state store.
+	 */
+	public static class CellDensitySerde implements Serde<CellDensity>,
+			Serializer<CellDensity>, Deserializer<CellDensity> {
+
+		public void configure(Map<String, ?> configs, boolean isKey) {
+		}
+
+		public byte[] serialize(String topic, CellDensity d) {
+			if(d == null) {
+				return null;
+			}
+			return ByteBuffer.allocate(24).putLong(d.count).putDouble(d.sumLat).putDouble(d.sumLon).array();
+		}
+
+		public CellDensity deserialize(String topic, byte[] data) {
+			if(data == null) {
+				return null;
+			}
+			ByteBuffer b = ByteBuffer.wrap(data);
+			return new CellDensity(b.getLong(), b.getDouble(), b.getDouble());
+		}
+
+		public Serializer<CellDensity> serializer() {
+			return this;
+		}
+
+		public Deserializer<CellDensity> deserializer() {
+			return this;
+		}
+
+		public void close() {
+		}
+	}
+
+}
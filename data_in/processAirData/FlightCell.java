@@ -0,0 +1,102 @@
+package processAirData;
+
+import java.io.IOException;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.specific.SpecificRecordBase;
+
+/**
+ * The message sent to Kafka for one flight state, with its schema fixed at compile time.
+ *
+ * The fields are primitives, so building a FlightCell boxes nothing, and encode() writes them
+ * straight to an Avro encoder without looking anything up by name. The schema is
+ * FlightState.schema, the "flightcell" record sent on FlightState.topic (opensky-cells) since
+ * states were laid out by "geoAirData.CellLayout", with an int partition prefix and geohash.
+ * Consumers that read that record generically, such as DensityRollup and the Cassandra sink,
+ * read these unchanged. The older "flightstate" records, sent once per resolution with a string
+ * geohash, are a different schema on a different topic.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class FlightCell extends SpecificRecordBase {
+
+	public static final Schema SCHEMA$ = FlightState.schema;
+
+	int timeinterval, prefix, geohash, time;
+	String flight;
+	double lat, lon;
+
+	public FlightCell() {
+	}
+
+	/**
+	 * @param timeinterval The hour (UNIX time / 3600)
+	 * @param prefix The partition the state is stored in (see "geoAirData.CellLayout")
+	 * @param geohash The state's full-resolution geohash
+	 * @param flight The aircraft's icao24 address
+	 * @param lat Latitude
+	 * @param lon Longitude
+	 * @param time UNIX time of the state
+	 */
+	public FlightCell(int timeinterval, int prefix, int geohash, String flight, double lat, double lon, int time) {
+		this.timeinterval = timeinterval;
+		this.prefix = prefix;
+		this.geohash = geohash;
+		this.flight = flight;
+		this.lat = lat;
+		this.lon = lon;
+		this.time = time;
+	}
+
+	/**
+	 * Writes the record in Avro's binary encoding, field by field in schema order.
+	 * @param out An encoder
+	 * @throws IOException
+	 */
+	public void encode(Encoder out) throws IOException {
+		out.writeInt(timeinterval);
+		out.writeInt(prefix);
+		out.writeInt(geohash);
+		out.writeString(flight);
+		out.writeDouble(lat);
+		out.writeDouble(lon);
+		out.writeInt(time);
+	}
+
+	@Override
+	public Schema getSchema() {
+		return SCHEMA$;
+	}
+
+	@Override
+	public Object get(int field) {
+		switch(field) {
+		case 0: return timeinterval;
+		case 1: return prefix;
+		case 2: return geohash;
+		case 3: return flight;
+		case 4: return lat;
+		case 5: return lon;
+		case 6: return time;
+		default: throw new AvroRuntimeException("Bad index "+field);
+		}
+	}
+
+	@Override
+	public void put(int field, Object value) {
+		switch(field) {
+		case 0: timeinterval = (Integer)value; break;
+		case 1: prefix = (Integer)value; break;
+		case 2: geohash = (Integer)value; break;
+		case 3: flight = value.toString(); break;
+		case 4: lat = (Double)value; break;
+		case 5: lon = (Double)value; break;
+		case 6: time = (Integer)value; break;
+		default: throw new AvroRuntimeException("Bad index "+field);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package processAirData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import io.confluent.kafka.serializers.KafkaAvroSerializer;
+
+/**
+ * Serializes FlightCells in the schema registry's wire format, the same bytes that
+ * KafkaAvroSerializer would produce: a zero byte, the 4-byte schema id, then the Avro binary
+ * encoding of the record.
+ *
+ * KafkaAvroSerializer looks up every field of a record through a generic datum writer and
+ * makes a new encoder and buffer for every message. This serializer writes FlightCells through
+ * FlightCell.encode, and each thread reuses one encoder and one buffer, so the only allocation
+ * per message is the returned array. The schema id is registered once per topic.
+ *
+ * Anything other than a FlightCell, such as the occupancy records, is handed to an ordinary
+ * KafkaAvroSerializer with the same configuration.
+ *
+ * Set "schema.registry.url" in the producer's configuration, as for KafkaAvroSerializer.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class FlightCellSerializer implements Serializer<Object> {
+
+	private static final byte magicByte = 0;
+
+	/**
+	 * A buffer that can be emptied and refilled without allocating.
+	 */
+	private static class Output extends ByteArrayOutputStream {
+		BinaryEncoder encoder;
+
+		Output() {
+			super(128);
+		}
+	}
+
+	private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+		@Override
+		protected Output initialValue() {
+			return new Output();
+		}
+	};
+
+	private final ConcurrentHashMap<String, Integer> schemaIds = new ConcurrentHashMap<String, Integer>();
+	private final KafkaAvroSerializer fallback = new KafkaAvroSerializer();
+	private SchemaRegistryClient registry;
+	private boolean isKey;
+
+	@Override
+	public void configure(Map<String, ?> configs, boolean isKey) {
+		this.isKey = isKey;
+		Object url = configs.get("schema.registry.url");
+		if(url == null) {
+			throw new IllegalArgumentException("schema.registry.url must be set.");
+		}
+		registry = new CachedSchemaRegistryClient(url.toString(), 1000);
+		fallback.configure(configs, isKey);
+	}
+
+	@Override
+	public byte[] serialize(String topic, Object data) {
+		if(data == null) {
+			return null;
+		}
+		if(!(data instanceof FlightCell)) {
+			return fallback.serialize(topic, data);
+		}
+		FlightCell cell = (FlightCell)data;
+		try {
+			int id = schemaId(topic);
+			Output out = outputs.get();
+			out.reset();
+			out.write(magicByte);
+			out.write(id >>> 24);
+			out.write(id >>> 16);
+			out.write(id >>> 8);
+			out.write(id);
+			out.encoder = EncoderFactory.get().binaryEncoder(out, out.encoder);
+			cell.encode(out.encoder);
+			out.encoder.flush();
+			return out.toByteArray();
+		} catch(IOException e) {
+			throw new SerializationException("Error serializing FlightCell", e);
+		} catch(RestClientException e) {
+			throw new SerializationException("Error registering FlightCell schema", e);
+		}
+	}
+
+	/**
+	 * Gets the schema id for a topic, registering the schema the first time.
+	 */
+	private int schemaId(String topic) throws IOException, RestClientException {
+		Integer id = schemaIds.get(topic);
+		if(id == null) {
+			id = registry.register(topic+(isKey ? "-key" : "-value"), FlightCell.SCHEMA$);
+			schemaIds.put(topic, id);
+		}
+		return id;
+	}
+
+	@Override
+	public void close() {
+		fallback.close();
+	}
+
+}
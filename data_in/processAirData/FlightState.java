@@ -1,5 +1,9 @@
 package processAirData;
 
+import geoAirData.CellLayout;
+
+import java.util.Map;
+
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
@@ -27,137 +31,68 @@ public class FlightState {
 	private Double lat, lon, velocity, heading, vertrate, baroaltitude, geoaltitude, lastposupdate, lastcontact;
 	private boolean onground, alert, spi;
 	
-	// The schema will be used for AVRO serialization
-	private static String userSchema = "{\"type\":\"record\",\"name\":\"flightstate\",\"fields\":"
+	/* The schema will be used for AVRO serialization (see FlightCell). Each state is sent once, with its
+	 * full-resolution geohash and the partition it's stored in (see "geoAirData.CellLayout"). */
+	private static String userSchema = "{\"type\":\"record\",\"name\":\"flightcell\",\"fields\":"
 			+ "[{\"name\":\"timeinterval\",\"type\":\"int\"},"
-			+ "{\"name\":\"geohash\",\"type\":\"string\"},"
+			+ "{\"name\":\"prefix\",\"type\":\"int\"},"
+			+ "{\"name\":\"geohash\",\"type\":\"int\"},"
 			+ "{\"name\":\"flight\",\"type\":\"string\"},"
 			+ "{\"name\":\"lat\",\"type\":\"double\"},"
 			+ "{\"name\":\"lon\",\"type\":\"double\"},"
 			+ "{\"name\":\"time\", \"type\":\"int\"}]}";
 	private static Schema.Parser parser = new Schema.Parser();
 	protected final static Schema schema = parser.parse(userSchema);
+	public static final String topic = "opensky-cells";
 	
-	/**
-	 * Creates a FlightState from an array of strings corresponding to
-	 * the FlightState variables. This constructor is intended to be used
-	 * for CSV files.
-	 * 
-	 * The String[] should have exactly 16 entries. The corresponding fields,
-	 * in order, are:
-	 *   time,icao24,lat,lon,velocity,heading,vertrate,callsign,onground,
-	 *   alert,spi,squawk,baroaltitude,geoaltitude,lastposupdate,lastcontact
-	 * @param parts An array of strings
-	 */
-	public FlightState(String[] parts) { //For CSV files
-		if(parts.length != 16) {
-			throw new IllegalArgumentException("String array should have exactly 16 entries.");
-		}
-		for(int i = 0; i < parts.length; i++) {
-			parts[i].trim();
-		}
-		time = parseInt(parts[0]);
-		icao24 = parts[1].trim();
-		lat = parseDouble(parts[2]);
-		lon = parseDouble(parts[3]);
-		velocity = parseDouble(parts[4]);
-		heading = parseDouble(parts[5]);
-		vertrate = parseDouble(parts[6]);
-		callsign = parts[7].trim();
-		onground = Boolean.parseBoolean(parts[8].trim());
-		alert = Boolean.parseBoolean(parts[9].trim());
-		spi = Boolean.parseBoolean(parts[10].trim());
-		squawk = parseInt(parts[11]);
-		baroaltitude = parseDouble(parts[12]);
-		geoaltitude = parseDouble(parts[13]);
-		lastposupdate = parseDouble(parts[14]);
-		lastcontact = parseDouble(parts[15]);
-	}
+	/* Occupancy messages announce that a full-resolution geohash box has states in an hour.
+	 * The boxes containing it at coarser resolutions are prefixes of its geohash. They are
+	 * stored by the same partition as the states, so that a map reads only the partitions it covers. */
+	private static String occupancySchema = "{\"type\":\"record\",\"name\":\"occupiedcell\",\"fields\":"
+			+ "[{\"name\":\"timeinterval\",\"type\":\"int\"},"
+			+ "{\"name\":\"prefix\",\"type\":\"int\"},"
+			+ "{\"name\":\"geohash\",\"type\":\"int\"}]}";
+	protected final static Schema occupancy = new Schema.Parser().parse(occupancySchema);
+	public static final String occupancyTopic = "opensky-occupancy";
+	
+	/* Ingest marks say that every state of an hour has been sent and acknowledged, at the
+	 * given UNIX time in milliseconds, and at or below the given offsets of each partition
+	 * (see partitionName). IngestMarker closes the hour once its consumers are past them. */
+	private static String ingestedSchema = "{\"type\":\"record\",\"name\":\"ingestedhour\",\"fields\":"
+			+ "[{\"name\":\"timeinterval\",\"type\":\"int\"},"
+			+ "{\"name\":\"completed\",\"type\":\"long\"},"
+			+ "{\"name\":\"offsets\",\"type\":{\"type\":\"map\",\"values\":\"long\"}}]}";
+	protected final static Schema ingested = new Schema.Parser().parse(ingestedSchema);
+	public static final String ingestedTopic = "opensky-ingested";
 	
 	/**
-	 * Constructs a FlightState from a String corresponding to flight state variables.
-	 * This constructor is intended to be used for JSON files from live-scrape data.
-	 * The string should be a list of values separated by commas. Corresponding variables
-	 * are as follows:
-	 * 
-	 * 0. ica024 (String)
-	 * 1. callsign (String)
-	 * 2. origin_country (String) - ignored
-	 * 3. time_position (Integer) - 
-	 * 4. time_velocity (Integer) - ignored
-	 * 5. longitude (Double)
-	 * 6. latitude (Double)
-	 * 7  altitude (Double) - could be baroaltitude or geoaltitude
-	 * 8. on_ground (boolean)
-	 * 9. velocity (Double)
-	 * 10. heading (Double)
-	 * 11. vertical_rate (Double)
-	 * 12. sensors (int[]) - should be null since no sensor filtering was used
-	 * 13. ???  (Double)
-	 * 14. squawk (String)
-	 * 15. ???   (boolean) 
-	 * 16. ??? (Integer) - usually 0
-	 * 
-	 * alert, spi, squak
-	 * lastposupdate,lastcontact
-	 * See "https://opensky-network.org/apidoc/rest.html" for further information.
+	 * Creates a FlightState from values that have already been parsed. This constructor is
+	 * used by the byte-level parsers, which don't make a String per field.
 	 * 
-	 * 
-	 * @param state
+	 * Values are indexed in CSV order (see the fields above). Booleans are stored
+	 * as 1 or 0. The entries for icao24 and callsign are ignored.
+	 * @param values Parsed values, in CSV order
+	 * @param present Whether each value was present. Missing values become null.
+	 * @param icao24 The aircraft's transponder address
+	 * @param callsign The flight's callsign
 	 */
-	public FlightState(String state) { //For JSON files extracted from live data
-		String[] parts = state.split(",");
-		
-		icao24 = parts[0].replaceAll("\"","").trim();
-		callsign = parts[1].replaceAll("\"","").trim();
-		time = parseInt(parts[3]);
-		lon = parseDouble(parts[5]);
-		lat = parseDouble(parts[6]);
-		baroaltitude = parseDouble(parts[7]);
-		geoaltitude = baroaltitude;
-		onground = Boolean.parseBoolean(parts[8].trim());
-		velocity = parseDouble(parts[9]);
-		heading = parseDouble(parts[10]);
-		vertrate = parseDouble(parts[11]);
-		squawk = parseInt(parts[14].replaceAll("\"",""));
-		
-		lastposupdate = parseDouble(""+time); //it'll be within 15 seconds for live data
-		//alert = null;
-		//spi = null;
-		//lastcontact = null;
-		
-		
-	}
-	
-	
-	
-	/**
-	 * Parses a string representing an integer. Whitespace or an empty string becomes null.
-	 * @param s A string
-	 * @return An integer
-	 */
-	private Integer parseInt(String s) {
-		String s2 = s.trim();
-		if(s2.equals("") || s2.equals("null")) {
-			return null;
-		} else {
-			return Integer.parseInt(s2);
-		}
-	}
-	
-	
-	/**
-	 * Parses a string representing a double. Whitespace or an empty string becomes null;
-	 * @param s A string
-	 * @return A double
-	 */
-	private Double parseDouble(String s) {
-		String s2 = s.trim();
-		if(s2.equals("") || s2.equals("null")) {
-			return null;
-		} else {
-			return Double.parseDouble(s2);
-		}
+	FlightState(double[] values, boolean[] present, String icao24, String callsign) {
+		time = present[0] ? Integer.valueOf((int)values[0]) : null;
+		this.icao24 = icao24;
+		lat = present[2] ? Double.valueOf(values[2]) : null;
+		lon = present[3] ? Double.valueOf(values[3]) : null;
+		velocity = present[4] ? Double.valueOf(values[4]) : null;
+		heading = present[5] ? Double.valueOf(values[5]) : null;
+		vertrate = present[6] ? Double.valueOf(values[6]) : null;
+		this.callsign = callsign;
+		onground = present[8] && values[8] != 0;
+		alert = present[9] && values[9] != 0;
+		spi = present[10] && values[10] != 0;
+		squawk = present[11] ? Integer.valueOf((int)values[11]) : null;
+		baroaltitude = present[12] ? Double.valueOf(values[12]) : null;
+		geoaltitude = present[13] ? Double.valueOf(values[13]) : null;
+		lastposupdate = present[14] ? Double.valueOf(values[14]) : null;
+		lastcontact = present[15] ? Double.valueOf(values[15]) : null;
 	}
 	
 	public String getPlane() {
@@ -175,10 +110,6 @@ public class FlightState {
 	public Double getLon() {
 		return lon;
 	}
-	public String getGeohash(int hexDigits) {
-		return getHexGeohash(lat,lon,hexDigits);
-	}
-	
 	/**
 	 * Checks that important variables are defined and that the age of the state is
 	 * at most 15 seconds.
@@ -195,92 +126,76 @@ public class FlightState {
 	}
 	
 	/**
-	 * A simple geohashing algorithm. Geohashing is an efective for describing
-	 * GPS coordinates in one variable, as well as for  partitioning a map.
-	 * 
-	 * Geohash values should be viewed as a BitString. If the number of bits
-	 * is divisible by 4, viewing the geohash as a HexString is also valuable.
-	 * 
-	 * To minimize servlet dependencies, a duplicate method is defined in 
-	 * "queryAirData.GetQuery". Any changes made here should be reflected there
-	 * as well.
+	 * Produces a record based on the default schema.
+	 * The record also contains the topic, which is necessary for Kafka's PubSub system.
+	 * The value is a FlightCell, which FlightCellSerializer writes without going through
+	 * Avro's generic path.
 	 * 
-	 * @param lat a double signifying latitude
-	 * @param lng a double signifying longitude
-	 * @param bits An integer assigning the accuracy of the geohash
-	 * @return A long. Best viewed as a bitstring with leading 0s re-added
+	 * The record carries the full-resolution geohash. Every coarser resolution is a prefix of
+	 * it, so queries at any resolution read the same row. It is keyed by its hour and
+	 * partition, so that SpatialPartitioner can keep nearby boxes together.
+	 * @param fs A FlightState
+	 * @param geohash The state's geohash at CellLayout.fullResolution
+	 * @return A record
 	 */
-	public static long encodeGeohash(double lat, double lon, int bits) {
-		double minLat = -90,  maxLat = 90;
-		double minLng = -180, maxLng = 180;
-		long result = 0;
-		for (int i = 0; i < bits; i++) {
-			if (i % 2 == 0) {                 // even bit: bisect longitude
-				double midpoint = (minLng + maxLng) / 2;
-				if (lon < midpoint) {
-					result <<= 1;                 // push a zero bit
-					maxLng = midpoint;            // shrink range downwards
-				} else {
-					result = result << 1 | 1;     // push a one bit
-					minLng = midpoint;            // shrink range upwards
-				}
-			} else {                          // odd bit: bisect latitude
-				double midpoint = (minLat + maxLat) / 2;
-				if (lat < midpoint) {
-					result <<= 1;                 // push a zero bit
-					maxLat = midpoint;            // shrink range downwards
-				} else {
-					result = result << 1 | 1;     // push a one bit
-					minLat = midpoint;            // shrink range upwards
-				}
-			}
+	public static ProducerRecord<Object, Object> kafkaAvroRecord(FlightState fs, long geohash) {
+		if(!fs.isValid()) {
+			throw new IllegalArgumentException("Flight state has expired or is incomplete.");
 		}
-		return result;
+		
+		int prefix = CellLayout.partitionOf(geohash);
+		FlightCell record = new FlightCell(fs.time/3600, prefix, (int)geohash,
+				fs.icao24, fs.lat, fs.lon, fs.time);
+		
+		return new ProducerRecord<Object, Object>(topic,SpatialPartitioner.key(fs.time/3600, prefix),record);
 	}
 	
-	
 	/**
-	 * Returns a hexadecimal string representing a geohash value.
-	 * Each additional hex digit increases accuracy.
-	 * 
-	 * Intentional use is between 4 and 7 digits inclusive.
-	 * 
-	 * @param lat A double representing latitude
-	 * @param lon A double representing longitude
-	 * @return A string denoting a hexadecimal number.
+	 * Produces a record announcing that a geohash box has flight states in an hour.
+	 * The Cassandra sink writes these to "openskyproject.occupiedcells", where the servlet
+	 * reads them to skip empty boxes at any resolution.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param geohash The box's geohash at CellLayout.fullResolution
+	 * @return A record
 	 */
-	public static String getHexGeohash(double lat, double lon, int hexDigits) {
-		String s = Long.toHexString(encodeGeohash(lat, lon, 4*hexDigits));
-		while(s.length() < hexDigits) {
-			s = "0"+s;
-		}
-		return s;
+	public static ProducerRecord<Object, Object> occupancyRecord(int hour, long geohash) {
+		GenericRecord record = new GenericData.Record(occupancy);
+		int prefix = CellLayout.partitionOf(geohash);
+		
+		record.put("timeinterval", hour);
+		record.put("prefix", prefix);
+		record.put("geohash", (int)geohash);
+		
+		return new ProducerRecord<Object, Object>(occupancyTopic, SpatialPartitioner.key(hour, prefix),record);
 	}
 	
-	
 	/**
-	 * Produces a record based on the default schema.
-	 * The record also contains the topic, which is necessary for Kafka's PubSub system.
-	 * The message is in JSON format. The KafkaProducer will apply Avro Serialization.
-	 * @param fs A FlightState
-	 * @param geohashDigits The number of hexadecimal geohash digits to be used in the message
+	 * Produces a record marking an hour as fully ingested.
+	 * IngestMarker reads these, and writes the hour to "openskyproject.ingestedhours", where
+	 * the servlet reads it, once the hour's states have been consumed.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param completed When the hour's last state was acknowledged, in UNIX milliseconds
+	 * @param offsets The last acknowledged offset of each partition written, by partitionName
 	 * @return A record
 	 */
-	public static ProducerRecord<Object, Object> kafkaAvroRecord(FlightState fs, int geohashDigits) {
-		if(!fs.isValid()) {
-			throw new IllegalArgumentException("Flight state has expired or is incomplete.");
-		}
+	public static ProducerRecord<Object, Object> ingestedRecord(int hour, long completed,
+			Map<String, Long> offsets) {
+		GenericRecord record = new GenericData.Record(ingested);
 		
-		GenericRecord record = new GenericData.Record(schema);
+		record.put("timeinterval", hour);
+		record.put("completed", completed);
+		record.put("offsets", offsets);
 		
-		record.put("timeinterval", fs.getHour());
-		record.put("geohash", fs.getGeohash(geohashDigits));
-		record.put("flight", fs.getPlane());
-		record.put("lat", fs.getLat());
-		record.put("lon", fs.getLon());
-		record.put("time", fs.getTime());
-		
-		return new ProducerRecord<Object, Object>("opensky-topic",record);
+		return new ProducerRecord<Object, Object>(ingestedTopic, null, record);
+	}
+	
+	/**
+	 * @param topic A topic
+	 * @param partition One of its partitions
+	 * @return The name of the partition in ingest marks
+	 */
+	public static String partitionName(String topic, int partition) {
+		return topic+":"+partition;
 	}
 	
 	/**
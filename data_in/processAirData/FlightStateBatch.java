@@ -0,0 +1,276 @@
+package processAirData;
+
+import java.util.Arrays;
+
+import geoAirData.CellLayout;
+import geoAirData.Geohash;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * A batch of flight states, stored column by column in primitive arrays.
+ *
+ * A FlightState holds a dozen boxed numbers, so a backfill of millions of states makes tens of
+ * millions of short-lived objects. A batch holds the same values in one array per variable,
+ * and records which values are missing in a bitmap per variable instead of with nulls. The
+ * readers fill batches directly (see StateReader.fill), and validation and geohashing then run
+ * as simple loops over whole columns.
+ *
+ * Variables are indexed in CSV order, as in FlightState. Booleans are kept in
+ * bitmaps of their own.
+ *
+ * A batch is not thread-safe; it is filled by one thread and then handed to another.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class FlightStateBatch {
+
+	private static final int fields = 16;
+	private static final int timeField = 0, icao24Field = 1, latField = 2, lonField = 3, velocityField = 4;
+	private static final int headingField = 5, vertrateField = 6, ongroundField = 8;
+	private static final int alertField = 9, spiField = 10, squawkField = 11, baroaltitudeField = 12;
+	private static final int geoaltitudeField = 13, lastposupdateField = 14, lastcontactField = 15;
+
+	// States older than this, in seconds, are invalid (see FlightState.isValid)
+	private static final double maxAge = 15;
+
+	private final int capacity;
+	private int size;
+
+	final int[] time, squawk;
+	final String[] icao24, callsign;
+	final double[] lat, lon, velocity, heading, vertrate, baroaltitude, geoaltitude, lastposupdate, lastcontact;
+	final long[] onground, alert, spi;
+
+	// For each variable, a bit per state that is set when the value is present
+	private final long[][] present = new long[fields][];
+
+	// Full-resolution geohashes, once computed, and a bit per state that is set when its
+	// geohash came with it (see addArchived)
+	final long[] geohash;
+	private final long[] hashed;
+
+	/**
+	 * @param capacity The most states the batch can hold
+	 */
+	public FlightStateBatch(int capacity) {
+		this.capacity = capacity;
+		int words = (capacity+63) >>> 6;
+		time = new int[capacity];
+		squawk = new int[capacity];
+		icao24 = new String[capacity];
+		callsign = new String[capacity];
+		lat = new double[capacity];
+		lon = new double[capacity];
+		velocity = new double[capacity];
+		heading = new double[capacity];
+		vertrate = new double[capacity];
+		baroaltitude = new double[capacity];
+		geoaltitude = new double[capacity];
+		lastposupdate = new double[capacity];
+		lastcontact = new double[capacity];
+		onground = new long[words];
+		alert = new long[words];
+		spi = new long[words];
+		for(int f = 0; f < fields; f++) {
+			present[f] = new long[words];
+		}
+		geohash = new long[capacity];
+		hashed = new long[words];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Empties the batch so it can be filled again.
+	 */
+	public void clear() {
+		for(int f = 0; f < fields; f++) {
+			Arrays.fill(present[f], 0);
+		}
+		Arrays.fill(onground, 0);
+		Arrays.fill(alert, 0);
+		Arrays.fill(spi, 0);
+		Arrays.fill(hashed, 0);
+		Arrays.fill(icao24, 0, size, null);
+		Arrays.fill(callsign, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Appends a state from values that have already been parsed, as passed to
+	 * FlightState(double[], boolean[], String, String).
+	 * @param values Parsed values, in CSV order
+	 * @param has Whether each value was present
+	 * @param icao24 The aircraft's transponder address
+	 * @param callsign The flight's callsign
+	 */
+	void add(double[] values, boolean[] has, String icao24, String callsign) {
+		if(size == capacity) {
+			throw new IllegalStateException("Batch is full.");
+		}
+		int i = size++;
+		for(int f = 0; f < fields; f++) {
+			if(has[f]) {
+				present[f][i >>> 6] |= 1L << i;
+			}
+		}
+		time[i] = (int)values[timeField];
+		this.icao24[i] = icao24;
+		lat[i] = values[latField];
+		lon[i] = values[lonField];
+		velocity[i] = values[velocityField];
+		heading[i] = values[headingField];
+		vertrate[i] = values[vertrateField];
+		this.callsign[i] = callsign;
+		setFlag(onground, i, has[ongroundField] && values[ongroundField] != 0);
+		setFlag(alert, i, has[alertField] && values[alertField] != 0);
+		setFlag(spi, i, has[spiField] && values[spiField] != 0);
+		squawk[i] = (int)values[squawkField];
+		baroaltitude[i] = values[baroaltitudeField];
+		geoaltitude[i] = values[geoaltitudeField];
+		lastposupdate[i] = values[lastposupdateField];
+		lastcontact[i] = values[lastcontactField];
+		setFlag(hashed, i, false);
+	}
+
+	/**
+	 * Appends a state read from an archive (see ArchiveReader), with its geohash. The geohash
+	 * is kept, rather than computed again from the rounded position.
+	 * @param values Parsed values, in CSV order
+	 * @param has Whether each value was present
+	 * @param icao24 The aircraft's transponder address
+	 * @param callsign The flight's callsign
+	 * @param geohash The full-resolution geohash
+	 */
+	void addArchived(double[] values, boolean[] has, String icao24, String callsign, long geohash) {
+		add(values, has, icao24, callsign);
+		int i = size-1;
+		this.geohash[i] = geohash;
+		setFlag(hashed, i, true);
+	}
+
+	private static void setFlag(long[] bits, int i, boolean on) {
+		if(on) {
+			bits[i >>> 6] |= 1L << i;
+		} else {
+			bits[i >>> 6] &= ~(1L << i);
+		}
+	}
+
+	static boolean flag(long[] bits, int i) {
+		return (bits[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * @param field A variable's index in CSV order
+	 * @param i A state's index in the batch
+	 * @return Whether the state has a value for the variable
+	 */
+	public boolean isPresent(int field, int i) {
+		return flag(present[field], i);
+	}
+
+	/**
+	 * Drops the states that FlightState.isValid would reject, keeping the others in order.
+	 * @return The number of states dropped
+	 */
+	public int retainValid() {
+		// Required variables are present where all of their bitmaps are set
+		long[] needed = new long[present[0].length];
+		long[] t = present[timeField], la = present[latField], lo = present[lonField];
+		long[] p = present[lastposupdateField];
+		for(int w = 0; w < needed.length; w++) {
+			needed[w] = t[w] & la[w] & lo[w] & p[w];
+		}
+
+		int kept = 0;
+		for(int i = 0; i < size; i++) {
+			if(flag(needed, i) && time[i]-lastposupdate[i] < maxAge && !icao24[i].isEmpty()) {
+				if(kept != i) {
+					move(i, kept);
+				}
+				kept++;
+			}
+		}
+		int dropped = size-kept;
+		Arrays.fill(icao24, kept, size, null);
+		Arrays.fill(callsign, kept, size, null);
+		size = kept;
+		return dropped;
+	}
+
+	/**
+	 * Copies state i over state j, for j < i.
+	 */
+	private void move(int i, int j) {
+		for(int f = 0; f < fields; f++) {
+			setFlag(present[f], j, flag(present[f], i));
+		}
+		time[j] = time[i];
+		icao24[j] = icao24[i];
+		lat[j] = lat[i];
+		lon[j] = lon[i];
+		velocity[j] = velocity[i];
+		heading[j] = heading[i];
+		vertrate[j] = vertrate[i];
+		callsign[j] = callsign[i];
+		setFlag(onground, j, flag(onground, i));
+		setFlag(alert, j, flag(alert, i));
+		setFlag(spi, j, flag(spi, i));
+		squawk[j] = squawk[i];
+		baroaltitude[j] = baroaltitude[i];
+		geoaltitude[j] = geoaltitude[i];
+		lastposupdate[j] = lastposupdate[i];
+		lastcontact[j] = lastcontact[i];
+		geohash[j] = geohash[i];
+		setFlag(hashed, j, flag(hashed, i));
+	}
+
+	/**
+	 * Computes the full-resolution geohash of every state. States should have been
+	 * validated first, so that every latitude and longitude is present. States read from an
+	 * archive keep the geohashes they came with.
+	 */
+	public void computeGeohashes() {
+		int bits = 4*CellLayout.fullResolution;
+		for(int i = 0; i < size; i++) {
+			if(!flag(hashed, i)) {
+				geohash[i] = Geohash.encode(lat[i], lon[i], bits);
+			}
+		}
+	}
+
+	/**
+	 * @param i A state's index in the batch
+	 * @return The hour of the state (UNIX time / 3600)
+	 */
+	public int getHour(int i) {
+		return time[i]/3600;
+	}
+
+	/**
+	 * Produces the record for one state, as FlightState.kafkaAvroRecord does.
+	 * Geohashes must have been computed.
+	 * @param i A state's index in the batch
+	 * @return A record
+	 */
+	public ProducerRecord<Object, Object> kafkaAvroRecord(int i) {
+		int hour = getHour(i);
+		int prefix = CellLayout.partitionOf(geohash[i]);
+		FlightCell record = new FlightCell(hour, prefix, (int)geohash[i], icao24[i], lat[i], lon[i], time[i]);
+		return new ProducerRecord<Object, Object>(FlightState.topic, SpatialPartitioner.key(hour, prefix), record);
+	}
+
+}
@@ -0,0 +1,196 @@
+package processAirData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+
+import io.confluent.kafka.serializers.KafkaAvroDeserializer;
+
+/**
+ * Closes hours once everything ingested for them is stored in Cassandra.
+ *
+ * IngestPipeline marks an hour as ingested as soon as Kafka has acknowledged its states (see
+ * FlightState.ingestedRecord). The Cassandra sink and DensityRollup consume them later, and in
+ * a large backfill either may lag far behind. The servlet caches maps of a closed hour for
+ * good, and browsers keep them for a year, so an hour is only closed once:
+ *   1. the sink's consumer group has committed offsets past the mark's, for the states and
+ *      occupancy topics, and DensityRollup has committed past them for the states topic, and
+ *   2. the sink has committed past every density update published by then.
+ * The hour's densities are then recomputed from its stored states (see DensityRebuild), which
+ * replaces any counts that states ingested twice have inflated, and the hour is written to:
+ *
+ *   CREATE TABLE openskyproject.ingestedhours (
+ *     timeinterval int PRIMARY KEY, completed bigint);
+ *
+ * where completed is when the hour was closed, in UNIX milliseconds. The sink itself no longer
+ * writes FlightState.ingestedTopic to that table.
+ *
+ * Usage: java processAirData.IngestMarker contactPoint sinkGroup
+ *   sinkGroup is the consumer group of the Cassandra sink. For a Kafka Connect sink, it is
+ *   "connect-" followed by the connector's name.
+ * Like ReadOpenSkyFile, it expects Kafka at localhost:9092 and the schema registry at
+ * localhost:8081. It runs until it is killed. Marks are committed once their hours are closed,
+ * so after a restart it closes the hours it hadn't got to.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class IngestMarker {
+
+	public static final String groupId = "opensky-ingest-marker";
+
+	private static final String insertQuery = "INSERT INTO openskyproject.ingestedhours"
+			+ " (timeinterval, completed) VALUES (?, ?);";
+
+	// How often the consumers' progress is checked while an hour waits for it
+	private static final long checkMillis = 10000;
+
+	public static void main(String[] args) throws InterruptedException {
+		if(args.length != 2) {
+			throw new IllegalArgumentException("Usage: IngestMarker contactPoint sinkGroup");
+		}
+
+		Cluster cluster = Cluster.builder().addContactPoint(args[0]).withPort(9042).build();
+		KafkaConsumer<Object, Object> marks = new KafkaConsumer<Object, Object>(markProperties());
+		KafkaConsumer<byte[], byte[]> sink = progressReader(args[1]);
+		KafkaConsumer<byte[], byte[]> rollup = progressReader(DensityRollup.applicationId);
+		DensityRebuild densities = null;
+		try {
+			Session session = cluster.connect();
+			PreparedStatement insert = session.prepare(insertQuery);
+			densities = new DensityRebuild(session);
+
+			marks.subscribe(Collections.singletonList(FlightState.ingestedTopic));
+			while(true) {
+				ConsumerRecords<Object, Object> polled = marks.poll(checkMillis);
+				for(ConsumerRecord<Object, Object> record : polled) {
+					GenericRecord mark = (GenericRecord)record.value();
+					int hour = (Integer)mark.get("timeinterval");
+					awaitConsumers(offsetsOf(mark), sink, rollup);
+					while(!densities.rebuild(hour)) {
+						System.out.println("Could not rebuild the densities of hour "+hour+", retrying");
+						Thread.sleep(checkMillis);
+					}
+					session.execute(insert.bind(hour, System.currentTimeMillis()));
+					System.out.println("Hour "+hour+" closed");
+				}
+				if(!polled.isEmpty()) {
+					marks.commitSync();
+				}
+			}
+		} finally {
+			if(densities != null) {
+				densities.close();
+			}
+			marks.close();
+			sink.close();
+			rollup.close();
+			cluster.close();
+		}
+	}
+
+	/**
+	 * Configures the consumer of the marks. An hour may wait a long time for the sink, so the
+	 * consumer may go that long between polls without leaving its group.
+	 */
+	private static Properties markProperties() {
+		Properties props = new Properties();
+		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, KafkaAvroDeserializer.class);
+		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, KafkaAvroDeserializer.class);
+		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+		props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+		props.put(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, Integer.MAX_VALUE);
+		props.put("schema.registry.url", "http://localhost:8081");
+		return props;
+	}
+
+	/**
+	 * Makes a consumer that only reads another group's committed offsets, and the end offsets
+	 * of topics. It never subscribes, so it doesn't join the group.
+	 * @param group The group whose progress is read
+	 */
+	private static KafkaConsumer<byte[], byte[]> progressReader(String group) {
+		Properties props = new Properties();
+		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		props.put(ConsumerConfig.GROUP_ID_CONFIG, group);
+		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+		props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+		return new KafkaConsumer<byte[], byte[]>(props);
+	}
+
+	/**
+	 * @param mark A record made by FlightState.ingestedRecord
+	 * @return The last offset of each partition of the states and occupancy topics in the mark
+	 */
+	static Map<TopicPartition, Long> offsetsOf(GenericRecord mark) {
+		Map<TopicPartition, Long> offsets = new HashMap<TopicPartition, Long>();
+		for(Map.Entry<?, ?> e : ((Map<?, ?>)mark.get("offsets")).entrySet()) {
+			String name = e.getKey().toString();
+			int colon = name.lastIndexOf(':');
+			String topic = name.substring(0, colon);
+			if(topic.equals(FlightState.topic) || topic.equals(FlightState.occupancyTopic)) {
+				offsets.put(new TopicPartition(topic, Integer.parseInt(name.substring(colon+1))),
+						(Long)e.getValue());
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * Waits until the sink and DensityRollup have consumed every message at or below the
+	 * offsets, and then until the sink has consumed the densities published so far. The rollup
+	 * commits its updates together with the offsets they came from, so those include every
+	 * update for the marked hour.
+	 */
+	private static void awaitConsumers(Map<TopicPartition, Long> offsets, KafkaConsumer<byte[], byte[]> sink,
+			KafkaConsumer<byte[], byte[]> rollup) throws InterruptedException {
+		for(Map.Entry<TopicPartition, Long> e : offsets.entrySet()) {
+			awaitCommitted(sink, e.getKey(), e.getValue()+1);
+			if(e.getKey().topic().equals(FlightState.topic)) {
+				awaitCommitted(rollup, e.getKey(), e.getValue()+1);
+			}
+		}
+		List<TopicPartition> densities = new ArrayList<TopicPartition>();
+		for(PartitionInfo p : sink.partitionsFor(DensityRollup.densityTopic)) {
+			densities.add(new TopicPartition(p.topic(), p.partition()));
+		}
+		for(Map.Entry<TopicPartition, Long> e : sink.endOffsets(densities).entrySet()) {
+			awaitCommitted(sink, e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Waits until a group has committed an offset of at least offset for a partition.
+	 */
+	private static void awaitCommitted(KafkaConsumer<byte[], byte[]> group, TopicPartition partition,
+			long offset) throws InterruptedException {
+		while(true) {
+			OffsetAndMetadata committed = group.committed(partition);
+			if((committed == null ? 0 : committed.offset()) >= offset) {
+				return;
+			}
+			Thread.sleep(checkMillis);
+		}
+	}
+
+}
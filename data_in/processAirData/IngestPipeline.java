@@ -0,0 +1,566 @@
+package processAirData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.SerializationException;
+
+/**
+ * Reads files of flight states and sends them to Kafka in three stages, each with its own
+ * threads:
+ *
+ *   1. Readers open files. Large CSV files are split into byte ranges, and each range's pages
+ *      are loaded from disk before it is handed on, so parsers don't wait on the disk.
+ *      Compressed files are inflated on threads of their own as they are parsed.
+ *   2. Parsers turn each file or range into batches of valid states (see FlightStateBatch),
+ *      and compute their geohashes. They run on a work-stealing ForkJoinPool. Once the range
+ *      queue is empty, as at the end of a backfill, a parser splits its CSV range in half and
+ *      forks one half, so idle parsers can take it. The pages of the range have already been
+ *      loaded, so the stolen half doesn't wait on the disk.
+ *   3. Senders serialize the batches and hand them to the Kafka producer, optionally dropping
+ *      repeated states first (see StateDeduplicator).
+ *
+ * The stages are joined by bounded queues, and the number of sends that Kafka hasn't
+ * acknowledged yet is capped as well. When Kafka slows down, senders wait for
+ * acknowledgements, the batch queue fills, parsers wait, and so on back to the readers. Memory
+ * is bounded however large the input is: at most queueSize ranges and queueSize batches are
+ * held at once. Batches are reused once they have been sent.
+ *
+ * Queue depths and throughput are printed every few seconds, which shows which stage is the
+ * bottleneck: a full range queue means parsing is, a full batch queue means sending is.
+ *
+ * When a run finishes (see finish), each hour it sent states for that ended more than an hour
+ * ago is marked as ingested (see FlightState.ingestedRecord), once Kafka has acknowledged all
+ * of them. If any state failed to send, no hour is marked, and the run is reported as
+ * incomplete: its hours stay open until a later run sends them in full. The mark carries
+ * the offsets of those acknowledgements, and IngestMarker closes the hour once the Cassandra
+ * sink and DensityRollup have consumed past them. The servlet only caches maps of closed hours
+ * for good, so a run should read whole hours: states of an hour that arrive after it is closed
+ * may stay out of maps cached by browsers.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class IngestPipeline {
+
+	private static final int batchSize = 1000;
+	private static final int reportSeconds = 10;
+	// Ranges smaller than this are parsed whole rather than split for idle parsers
+	private static final long minSplitBytes = 4L << 20;
+
+	// Marks the end of a queue
+	private static final StateReader endOfReaders = new StateReader() {
+		public FlightState next() {
+			return null;
+		}
+		public boolean fill(FlightStateBatch batch) {
+			return false;
+		}
+		public long getMalformed() {
+			return 0;
+		}
+		public void close() {
+		}
+	};
+	private static final FlightStateBatch endOfBatches = new FlightStateBatch(0);
+
+	private final Producer<Object, Object> producer;
+	private final int readers, parsers, senders;
+	private final long chunkSize;
+
+	private final BlockingQueue<StateReader> ranges;
+	// Ranges being parsed, at most one per parser; forked halves count with their range
+	private final Semaphore parsing;
+	private final BlockingQueue<FlightStateBatch> batches;
+	// Sent batches, cleared for parsers to fill again
+	private final BlockingQueue<FlightStateBatch> spareBatches;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+
+	// Thins out repeated states before they are sent, if set
+	private StateDeduplicator deduplicator;
+
+	// The part of .osky archives that is replayed (see ArchiveReader.select)
+	private int firstHour = Integer.MIN_VALUE, lastHour = Integer.MAX_VALUE;
+	private long startGeohash = 0, endGeohash = Long.MAX_VALUE;
+
+	/* Remembers the geohash boxes already announced for the last few hours. Each parser may be
+	 * on a file of a different hour, each spanning up to two, so there is room for that many. */
+	private final OccupancyTracker occupancy;
+	// Hours with states sent that haven't been marked as ingested yet
+	private final ConcurrentSkipListSet<Integer> unmarked = new ConcurrentSkipListSet<Integer>();
+
+	private final AtomicLong statesRead = new AtomicLong(), statesSkipped = new AtomicLong();
+	private final AtomicLong messagesSent = new AtomicLong(), sendsFailed = new AtomicLong();
+	private final AtomicLong batchesFailed = new AtomicLong();
+	// The last acknowledged offset of each partition written, keyed by FlightState.partitionName
+	private final Map<String, Long> acknowledged = new HashMap<String, Long>();
+
+	/**
+	 * @param producer The producer that all senders share
+	 * @param readers Number of reader threads
+	 * @param parsers Number of parser threads
+	 * @param senders Number of sender threads
+	 * @param queueSize Capacity of each queue between stages
+	 * @param maxInFlight Most messages that may wait for an acknowledgement from Kafka
+	 * @param chunkSize Size in bytes of the ranges that CSV files are split into
+	 */
+	public IngestPipeline(Producer<Object, Object> producer, int readers, int parsers, int senders,
+			int queueSize, int maxInFlight, long chunkSize) {
+		if(readers < 1 || parsers < 1 || senders < 1 || queueSize < 1 || maxInFlight < 1 || chunkSize < 1) {
+			throw new IllegalArgumentException("Thread counts, sizes, and limits must be positive.");
+		}
+		this.producer = producer;
+		this.readers = readers;
+		this.parsers = parsers;
+		this.senders = senders;
+		this.chunkSize = chunkSize;
+		this.maxInFlight = maxInFlight;
+		ranges = new ArrayBlockingQueue<StateReader>(queueSize);
+		parsing = new Semaphore(parsers);
+		batches = new ArrayBlockingQueue<FlightStateBatch>(queueSize);
+		spareBatches = new ArrayBlockingQueue<FlightStateBatch>(queueSize+parsers+senders);
+		inFlight = new Semaphore(maxInFlight);
+		occupancy = new OccupancyTracker(2*parsers+2);
+	}
+
+	/**
+	 * Adds a stage that drops repeated states before they are sent. Off by default.
+	 * @param deduplicator A deduplicator, or null to send every state
+	 */
+	public void setDeduplicator(StateDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * Replays only part of each archive written by ArchiveWriter. Other files are read whole.
+	 * @param firstHour The first hour to replay (UNIX time / 3600)
+	 * @param lastHour The last hour to replay
+	 * @param startGeohash The first full-resolution geohash to replay
+	 * @param endGeohash The geohash after the last one to replay
+	 */
+	public void setArchiveSlice(int firstHour, int lastHour, long startGeohash, long endGeohash) {
+		this.firstHour = firstHour;
+		this.lastHour = lastHour;
+		this.startGeohash = startGeohash;
+		this.endGeohash = endGeohash;
+	}
+
+	/**
+	 * Reads every file and sends its states, returning once Kafka has acknowledged them all.
+	 * @param files .csv and .json files
+	 * @throws InterruptedException
+	 */
+	public void run(List<File> files) throws InterruptedException {
+		final ConcurrentLinkedQueue<File> pending = new ConcurrentLinkedQueue<File>(files);
+		final AtomicInteger readersLeft = new AtomicInteger(readers);
+		final ForkJoinPool parsePool = new ForkJoinPool(parsers);
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for(int i = 0; i < readers; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						File f;
+						while((f = pending.poll()) != null) {
+							read(f);
+						}
+					} catch(InterruptedException e) {
+						return;
+					} finally {
+						if(readersLeft.decrementAndGet() == 0) {
+							putAll(ranges, endOfReaders, 1);
+						}
+					}
+				}
+			}, "ingest-reader-"+i));
+		}
+		// Hands each range to the parse pool, as soon as a parser is free for it
+		threads.add(new Thread(new Runnable() {
+			public void run() {
+				try {
+					StateReader reader;
+					while((reader = ranges.take()) != endOfReaders) {
+						parsing.acquire();
+						parsePool.execute(new ParseTask(reader, true));
+					}
+					// Wait for the last ranges, and the halves split from them
+					parsing.acquire(parsers);
+				} catch(InterruptedException e) {
+					parsePool.shutdownNow();
+				} finally {
+					putAll(batches, endOfBatches, senders);
+				}
+			}
+		}, "ingest-dispatcher"));
+		for(int i = 0; i < senders; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						FlightStateBatch batch;
+						while((batch = batches.take()) != endOfBatches) {
+							try {
+								send(batch);
+							} catch(RuntimeException e) {
+								// A dead sender would leave the parsers waiting on a full queue for good
+								if(batchesFailed.getAndIncrement() == 0) {
+									System.out.println("Could not send a batch: "+e);
+								}
+							}
+							batch.clear();
+							spareBatches.offer(batch);
+						}
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+			}, "ingest-sender-"+i));
+		}
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ingest-report");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final long started = System.currentTimeMillis();
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				System.out.println(status(started));
+			}
+		}, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+		try {
+			for(Thread t : threads) {
+				t.start();
+			}
+			for(Thread t : threads) {
+				t.join();
+			}
+			finish();
+		} finally {
+			reporter.shutdownNow();
+			parsePool.shutdown();
+		}
+		System.out.println(files.size()+" files done. "+status(started));
+	}
+
+	/**
+	 * Sends every state of one source, such as a live response, on the calling thread. This
+	 * is for long-lived processes that get their states a little at a time; the reader is not
+	 * closed.
+	 * @param reader A source of states
+	 * @return The number of states read
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long sendAll(StateReader reader) throws IOException, InterruptedException {
+		FlightStateBatch batch = new FlightStateBatch(batchSize);
+		long read = 0;
+		long malformed = reader.getMalformed();
+		while(reader.fill(batch)) {
+			read += batch.size();
+			batch.retainValid();
+			batch.computeGeohashes();
+			send(batch);
+			batch.clear();
+		}
+		statesRead.addAndGet(read);
+		statesSkipped.addAndGet(reader.getMalformed()-malformed);
+		return read;
+	}
+
+	/**
+	 * Sends any states held back by the deduplicator, and waits until Kafka has acknowledged
+	 * everything sent so far. Then marks the hours that are done as ingested: every hour sent
+	 * so far that ended more than an hour ago, so that no live scrape can add to it. Hours that
+	 * are more recent are marked by a later call, once they are that old.
+	 *
+	 * A mark promises that every state of the hour was acknowledged, so nothing is marked once
+	 * a send or a batch has failed; the hours are kept, and the run is reported as incomplete.
+	 * @return Whether every state sent so far was acknowledged
+	 * @throws InterruptedException
+	 */
+	public boolean finish() throws InterruptedException {
+		if(deduplicator != null) {
+			List<ProducerRecord<Object, Object>> held = new ArrayList<ProducerRecord<Object, Object>>();
+			deduplicator.flush(held);
+			for(ProducerRecord<Object, Object> record : held) {
+				send(record);
+			}
+		}
+		awaitAcknowledgements();
+		if(sendsFailed.get() > 0 || batchesFailed.get() > 0) {
+			System.out.println("Incomplete: "+sendsFailed.get()+" sends failed and "+batchesFailed.get()
+					+" batches not sent, so hours "+unmarked+" are not marked as ingested");
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		int currentHour = (int)(now/1000/3600);
+		Map<String, Long> offsets;
+		synchronized(acknowledged) {
+			offsets = new HashMap<String, Long>(acknowledged);
+		}
+		boolean marked = false;
+		for(Integer hour : unmarked) {
+			if(currentHour - hour > 1) {
+				send(FlightState.ingestedRecord(hour, now, offsets));
+				unmarked.remove(hour);
+				marked = true;
+			}
+		}
+		if(marked) {
+			awaitAcknowledgements();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until Kafka has acknowledged every message sent so far.
+	 */
+	private void awaitAcknowledgements() throws InterruptedException {
+		producer.flush();
+		inFlight.acquire(maxInFlight);
+		inFlight.release(maxInFlight);
+	}
+
+	/**
+	 * Describes the state of each stage.
+	 */
+	private String status(long started) {
+		long seconds = Math.max(1, (System.currentTimeMillis()-started)/1000);
+		return "ranges queued "+ranges.size()+", batches queued "+batches.size()
+				+", sends in flight "+(maxInFlight-inFlight.availablePermits())
+				+"; "+statesRead.get()+" states read ("+statesRead.get()/seconds+"/s), "
+				+statesSkipped.get()+" malformed, "+messagesSent.get()+" messages sent, "
+				+sendsFailed.get()+" failed, "+batchesFailed.get()+" batches not sent";
+	}
+
+	/**
+	 * Opens a file and queues it, or queues its ranges if it is a plain CSV file.
+	 * Compressed files and archives can only be read from the start, so they aren't split.
+	 */
+	private void read(File f) throws InterruptedException {
+		try {
+			if(f.getName().endsWith(ArchiveFormat.extension)) {
+				ArchiveReader archive = new ArchiveReader(f);
+				archive.select(firstHour, lastHour, startGeohash, endGeohash);
+				ranges.put(archive);
+				return;
+			} else if(!f.getName().endsWith(".csv")) {
+				ranges.put(ReadOpenSkyFile.openReader(f));
+				return;
+			}
+			MappedCsvReader header = new MappedCsvReader(f);
+			header.close();
+			long size = f.length();
+			for(long start = header.getDataStart(); start < size; start += chunkSize) {
+				MappedCsvReader range = new MappedCsvReader(f, header.getColumns(), start,
+						Math.min(size, start+chunkSize));
+				range.load();
+				ranges.put(range);
+			}
+		} catch(IOException e) {
+			System.out.println("Could not read "+f+": "+e);
+		}
+	}
+
+	/**
+	 * Parses a file or range on the parse pool. A CSV range is split in half while it is large
+	 * and no other work is waiting for the parsers, and the halves are parsed as separate tasks
+	 * that idle parsers can steal. A line belongs to the range its first byte is in, so the
+	 * halves read every line of the range exactly once (see MappedCsvReader).
+	 */
+	private class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final StateReader reader;
+		// Whether this task holds a parsing permit, which it gives back when it is done
+		private final boolean root;
+
+		ParseTask(StateReader reader, boolean root) {
+			this.reader = reader;
+			this.root = root;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				MappedCsvReader split = splittable(reader);
+				if(split == null) {
+					parse(reader);
+					return;
+				}
+				long start = split.getDataStart(), end = split.getEnd(), middle = start+(end-start)/2;
+				int[] columns = split.getColumns();
+				split.close();
+				invokeAll(new ParseTask(new MappedCsvReader(split.getFile(), columns, start, middle), false),
+						new ParseTask(new MappedCsvReader(split.getFile(), columns, middle, end), false));
+			} catch(IOException e) {
+				System.out.println("Could not read "+reader+": "+e);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch(RuntimeException e) {
+				// The pool would drop it without a word
+				System.out.println("Could not parse "+reader+": "+e);
+			} finally {
+				if(root) {
+					parsing.release();
+				}
+			}
+		}
+
+		/**
+		 * @return The reader as a CSV range worth splitting now, or null to parse it whole
+		 */
+		private MappedCsvReader splittable(StateReader reader) {
+			if(!(reader instanceof MappedCsvReader) || !ranges.isEmpty() || getSurplusQueuedTaskCount() > 0) {
+				return null;
+			}
+			MappedCsvReader csv = (MappedCsvReader)reader;
+			return csv.getEnd()-csv.getDataStart() >= 2*minSplitBytes ? csv : null;
+		}
+	}
+
+	/**
+	 * Reads every state of a file or range into batches, then closes it.
+	 */
+	private void parse(StateReader reader) throws InterruptedException {
+		long read = 0;
+		try {
+			while(true) {
+				FlightStateBatch batch = spareBatches.poll();
+				if(batch == null) {
+					batch = new FlightStateBatch(batchSize);
+				}
+				if(!reader.fill(batch)) {
+					spareBatches.offer(batch);
+					break;
+				}
+				read += batch.size();
+				// Incomplete flight states are skipped without notification
+				batch.retainValid();
+				batch.computeGeohashes();
+				batches.put(batch);
+			}
+		} catch(IOException e) {
+			System.out.println("Could not read "+reader+": "+e);
+		} finally {
+			try {
+				reader.close();
+			} catch(IOException e) {
+				// Nothing more is read from it
+			}
+			statesRead.addAndGet(read);
+			statesSkipped.addAndGet(reader.getMalformed());
+		}
+	}
+
+	/**
+	 * Sends a batch of states to Kafka.
+	 * Each state is sent once, with its full-resolution geohash; queries at coarser
+	 * resolutions scan a range of that geohash (see "geoAirData.CellLayout").
+	 * The first state in a full-resolution box each hour also announces the box as occupied;
+	 * the servlet derives the occupied boxes at coarser resolutions from those.
+	 */
+	private void send(FlightStateBatch batch) throws InterruptedException {
+		List<ProducerRecord<Object, Object>> admitted = new ArrayList<ProducerRecord<Object, Object>>(2);
+		int previousHour = Integer.MIN_VALUE;
+		for(int i = 0; i < batch.size(); i++) {
+			try {
+				int hour = batch.getHour(i);
+				if(hour != previousHour) {
+					unmarked.add(hour);
+					previousHour = hour;
+				}
+				if(deduplicator == null) {
+					send(batch.kafkaAvroRecord(i));
+				} else {
+					admitted.clear();
+					deduplicator.admit(batch.icao24[i], batch.geohash[i], hour, batch.kafkaAvroRecord(i), admitted);
+					for(ProducerRecord<Object, Object> record : admitted) {
+						send(record);
+					}
+				}
+				if(occupancy.markOccupied(hour, (int)batch.geohash[i])) {
+					send(FlightState.occupancyRecord(hour, batch.geohash[i]));
+				}
+			} catch(SerializationException e) {
+				// The state is lost, so its hour mustn't be marked
+				sendsFailed.incrementAndGet();
+				System.out.println("Serialization Exception: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Sends one message, waiting first if too many are unacknowledged.
+	 */
+	private void send(ProducerRecord<Object, Object> record) throws InterruptedException {
+		inFlight.acquire();
+		try {
+			producer.send(record, acknowledgement);
+		} catch(RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	private final Callback acknowledgement = new Callback() {
+		public void onCompletion(RecordMetadata metadata, Exception exception) {
+			inFlight.release();
+			if(exception == null) {
+				messagesSent.incrementAndGet();
+				String partition = FlightState.partitionName(metadata.topic(), metadata.partition());
+				synchronized(acknowledged) {
+					Long last = acknowledged.get(partition);
+					if(last == null || last < metadata.offset()) {
+						acknowledged.put(partition, metadata.offset());
+					}
+				}
+			} else if(sendsFailed.getAndIncrement() == 0) {
+				System.out.println("Send failed: "+exception);
+			}
+		}
+	};
+
+	/**
+	 * Puts copies of an end marker on a queue, one per thread that takes from it.
+	 */
+	private static <T> void putAll(BlockingQueue<T> queue, T marker, int copies) {
+		for(int i = 0; i < copies; i++) {
+			boolean put = false;
+			while(!put) {
+				try {
+					queue.put(marker);
+					put = true;
+				} catch(InterruptedException e) {
+					// The consumers must still be told to stop
+				}
+			}
+		}
+	}
+
+}
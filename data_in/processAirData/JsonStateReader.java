@@ -0,0 +1,407 @@
+package processAirData;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the flight states of a live OpenSky response, as found at
+ * "https://opensky-network.org/api/states/all", one state at a time.
+ *
+ * The response is read as a stream of JSON tokens, so only one state is held in memory at a
+ * time, however large the response is. Strings may contain commas, brackets, and escapes, and
+ * any value may be null. The nested "sensors" array, and any other value that isn't used, is
+ * skipped. Keys other than "states" are skipped as well.
+ *
+ * Each state is an array whose entries are as follows:
+ *
+ * 0. icao24 (String)
+ * 1. callsign (String)
+ * 2. origin_country (String) - ignored
+ * 3. time_position (Integer)
+ * 4. last_contact (Integer) - ignored
+ * 5. longitude (Double)
+ * 6. latitude (Double)
+ * 7. baro_altitude (Double)
+ * 8. on_ground (boolean)
+ * 9. velocity (Double)
+ * 10. true_track (Double) - stored as heading
+ * 11. vertical_rate (Double)
+ * 12. sensors (int[]) - ignored; should be null since no sensor filtering was used
+ * 13. geo_altitude (Double)
+ * 14. squawk (String)
+ * 15. spi (boolean)
+ * 16. position_source (Integer) - ignored
+ *
+ * Live data is at most 15 seconds old, so lastposupdate is taken to be time_position.
+ * See "https://opensky-network.org/apidoc/rest.html" for further information.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class JsonStateReader implements StateReader {
+
+	// For each entry of a state array, the FlightState variable it fills (in CSV order), or -1
+	private static final int[] entryFields = {1, 7, -1, 0, -1, 3, 2, 12, 8, 4, 5, 6, -1, 13, 11, 10, -1};
+	private static final int icao24Field = 1, callsignField = 7, squawkField = 11;
+	private static final int baroaltitudeField = 12, geoaltitudeField = 13;
+	private static final int timeField = 0, lastposupdateField = 14;
+
+	private final InputStream in;
+	private final byte[] buf = new byte[64*1024];
+	private int pos, limit;
+
+	// Whether the reader is inside the states array, and whether that array has been finished
+	private boolean inStates, done;
+
+	private final double[] values = new double[16];
+	private final boolean[] present = new boolean[16];
+	private String icao24, callsign;
+	private long malformed;
+	private byte[] token = new byte[64];
+	private int tokenLength;
+	private final ByteBuffer tokenBuffer = ByteBuffer.allocate(64);
+
+	/**
+	 * @param in A stream holding one response. The reader closes it when it is closed.
+	 */
+	public JsonStateReader(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public FlightState next() throws IOException {
+		if(!nextState()) {
+			return null;
+		}
+		readState();
+		return new FlightState(values, present, icao24, callsign);
+	}
+
+	@Override
+	public boolean fill(FlightStateBatch batch) throws IOException {
+		boolean any = false;
+		while(!batch.isFull() && nextState()) {
+			any = true;
+			try {
+				readState();
+				batch.add(values, present, icao24, callsign);
+			} catch(NumberFormatException e) {
+				malformed++;
+			}
+		}
+		return any;
+	}
+
+	@Override
+	public long getMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * Moves to the start of the next state array.
+	 * @return False if there are no more states
+	 */
+	private boolean nextState() throws IOException {
+		if(done) {
+			return false;
+		}
+		if(!inStates && !findStates()) {
+			done = true;
+			return false;
+		}
+		while(true) {
+			int c = skipWhitespace();
+			if(c == ']') {
+				pos++;
+				inStates = false;
+				done = true;
+				return false;
+			}
+			if(c == ',') {
+				pos++;
+				c = skipWhitespace();
+			}
+			if(c == 'n') {
+				literal("null");
+				continue;
+			}
+			expect('[');
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the top-level object up to the start of the "states" array.
+	 * @return False if the response has no states
+	 */
+	private boolean findStates() throws IOException {
+		expect('{');
+		while(true) {
+			int c = skipWhitespace();
+			if(c == '}') {
+				return false;
+			}
+			if(c == ',') {
+				pos++;
+				skipWhitespace();
+			}
+			readString();
+			boolean states = tokenIs("states");
+			skipWhitespace();
+			expect(':');
+			if(states) {
+				if(skipWhitespace() == 'n') {
+					literal("null");
+					return false;
+				}
+				expect('[');
+				inStates = true;
+				return true;
+			}
+			skipValue();
+		}
+	}
+
+	/**
+	 * Reads one state array, whose '[' has already been consumed, into values and present.
+	 * @throws NumberFormatException if a number is malformed. The whole array is still read.
+	 */
+	private void readState() throws IOException {
+		Arrays.fill(present, false);
+		icao24 = "";
+		callsign = "";
+		boolean bad = false;
+
+		for(int entry = 0; ; entry++) {
+			int c = skipWhitespace();
+			if(c == ']') {
+				pos++;
+				break;
+			}
+			if(c == ',') {
+				pos++;
+				c = skipWhitespace();
+			}
+			int field = entry < entryFields.length ? entryFields[entry] : -1;
+			if(field < 0) {
+				skipValue();
+				continue;
+			}
+
+			if(c == '"') {
+				readString();
+				if(field == icao24Field) {
+					icao24 = tokenString().trim();
+				} else if(field == callsignField) {
+					callsign = tokenString().trim();
+				} else if(field == squawkField && tokenLength > 0) {
+					// Squawk codes are sent as strings of digits
+					try {
+						values[field] = parseToken();
+						present[field] = true;
+					} catch(NumberFormatException e) {
+						bad = true;
+					}
+				}
+			} else if(c == 't' || c == 'f') {
+				values[field] = c == 't' ? 1 : 0;
+				present[field] = true;
+				literal(c == 't' ? "true" : "false");
+			} else if(c == 'n') {
+				literal("null");
+			} else {
+				readNumber();
+				try {
+					values[field] = parseToken();
+					present[field] = true;
+				} catch(NumberFormatException e) {
+					bad = true;
+				}
+			}
+		}
+
+		if(bad) {
+			throw new NumberFormatException("State of "+icao24+" has a malformed number.");
+		}
+		if(!present[geoaltitudeField] && present[baroaltitudeField]) {
+			values[geoaltitudeField] = values[baroaltitudeField];
+			present[geoaltitudeField] = true;
+		}
+		values[lastposupdateField] = values[timeField];
+		present[lastposupdateField] = present[timeField];
+	}
+
+	/**
+	 * Skips any value, including nested arrays and objects.
+	 */
+	private void skipValue() throws IOException {
+		int c = skipWhitespace();
+		if(c == '"') {
+			readString();
+		} else if(c == '[' || c == '{') {
+			pos++;
+			int depth = 1;
+			while(depth > 0) {
+				c = skipWhitespace();
+				if(c == '"') {
+					readString();
+					continue;
+				}
+				if(c == '[' || c == '{') {
+					depth++;
+				} else if(c == ']' || c == '}') {
+					depth--;
+				}
+				pos++;
+			}
+		} else if(c == 't') {
+			literal("true");
+		} else if(c == 'f') {
+			literal("false");
+		} else if(c == 'n') {
+			literal("null");
+		} else {
+			readNumber();
+		}
+	}
+
+	/**
+	 * Reads a string into the token buffer, decoding escapes.
+	 */
+	private void readString() throws IOException {
+		expect('"');
+		tokenLength = 0;
+		while(true) {
+			int c = read();
+			if(c == '"') {
+				return;
+			}
+			if(c == '\\') {
+				c = read();
+				switch(c) {
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'u':
+					int code = 0;
+					for(int i = 0; i < 4; i++) {
+						code = code*16 + Character.digit(read(), 16);
+					}
+					// Identifiers are ASCII; anything else is replaced
+					c = code < 0x80 ? code : '?';
+					break;
+				default: break; // '"', '\\', and '/' stand for themselves
+				}
+			}
+			append(c);
+		}
+	}
+
+	/**
+	 * Reads a number into the token buffer.
+	 */
+	private void readNumber() throws IOException {
+		tokenLength = 0;
+		while(true) {
+			int c = peek();
+			if(c < 0 || c == ',' || c == ']' || c == '}' || c <= ' ') {
+				return;
+			}
+			append(c);
+			pos++;
+		}
+	}
+
+	private void append(int c) {
+		if(tokenLength == token.length) {
+			token = Arrays.copyOf(token, 2*tokenLength);
+		}
+		token[tokenLength++] = (byte)c;
+	}
+
+	private boolean tokenIs(String s) {
+		if(s.length() != tokenLength) {
+			return false;
+		}
+		for(int i = 0; i < tokenLength; i++) {
+			if(token[i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String tokenString() {
+		return new String(token, 0, tokenLength, StandardCharsets.US_ASCII);
+	}
+
+	private double parseToken() {
+		if(tokenLength == 0 || tokenLength > tokenBuffer.capacity()) {
+			return Double.parseDouble(tokenString());
+		}
+		tokenBuffer.clear();
+		tokenBuffer.put(token, 0, tokenLength);
+		return CsvLineParser.parseNumber(tokenBuffer, 0, tokenLength);
+	}
+
+	private void literal(String word) throws IOException {
+		for(int i = 0; i < word.length(); i++) {
+			if(read() != word.charAt(i)) {
+				throw new IOException("Malformed JSON: expected "+word);
+			}
+		}
+	}
+
+	private void expect(char c) throws IOException {
+		if(skipWhitespace() != c) {
+			throw new IOException("Malformed JSON: expected '"+c+"' but found '"+(char)peek()+"'");
+		}
+		pos++;
+	}
+
+	private int skipWhitespace() throws IOException {
+		while(true) {
+			int c = peek();
+			if(c < 0) {
+				throw new EOFException("JSON ended early.");
+			}
+			if(c > ' ') {
+				return c;
+			}
+			pos++;
+		}
+	}
+
+	private int read() throws IOException {
+		int c = peek();
+		if(c < 0) {
+			throw new EOFException("JSON ended early.");
+		}
+		pos++;
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if(pos == limit) {
+			limit = in.read(buf);
+			pos = 0;
+			if(limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buf[pos] & 0xff;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,242 @@
+package processAirData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the flight states in an OpenSky CSV file through a memory mapping.
+ *
+ * The file is mapped in windows of up to 256 MB, so files larger than a single mapping can
+ * hold are read as well. Lines are found by scanning the mapped bytes, and each line is parsed
+ * in place by a CsvLineParser. No line is ever copied into a String.
+ *
+ * The first line of the file should be a list of variable names; it sets the column order.
+ *
+ * A reader can also be limited to a byte range of the file, so that several threads can share
+ * one large file. A line belongs to the range its first byte falls in: a range that starts in
+ * the middle of a line skips to the next one, and the last line of a range is read to its end
+ * even if that is past the range. Any set of ranges that covers the file therefore reads every
+ * line exactly once, wherever the ranges are split.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class MappedCsvReader implements StateReader {
+
+	private static final long window = 256L << 20;
+	private static final int pageSize = 4096;
+
+	private final File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size, end;
+	private final int[] columns;
+	private final long dataStart;
+	private final CsvLineParser parser;
+
+	private MappedByteBuffer buf;
+	private long bufStart;
+	private int cursor;
+
+	// The line found by nextLine
+	private int lineStart, lineStop;
+	private long malformed;
+
+	// Keeps load() from being optimized away
+	@SuppressWarnings("unused")
+	private volatile int touched;
+
+	/**
+	 * Opens a file and reads its header.
+	 * @param f A CSV file
+	 * @throws IOException
+	 */
+	public MappedCsvReader(File f) throws IOException {
+		path = f;
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+		size = channel.size();
+		end = size;
+		map(0);
+
+		int headerEnd = findNewline(0);
+		if(headerEnd < 0) {
+			headerEnd = buf.limit();
+		}
+		byte[] header = new byte[headerEnd];
+		buf.get(header);
+		cursor = Math.min(headerEnd+1, buf.limit());
+		dataStart = cursor;
+		columns = ReadOpenSkyFile.csvColumns(new String(header, StandardCharsets.US_ASCII));
+		parser = new CsvLineParser(columns);
+	}
+
+	/**
+	 * Opens a byte range of a file whose header has already been read.
+	 * @param f A CSV file
+	 * @param columns The file's column table, from getColumns()
+	 * @param start First byte of the range. It should be no less than getDataStart().
+	 * @param end Byte just past the range
+	 * @throws IOException
+	 */
+	public MappedCsvReader(File f, int[] columns, long start, long end) throws IOException {
+		path = f;
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+		size = channel.size();
+		this.end = Math.min(end, size);
+		this.columns = columns;
+		dataStart = start;
+		parser = new CsvLineParser(columns);
+
+		if(start <= 0 || start >= size) {
+			map(Math.max(0, Math.min(start, size)));
+			return;
+		}
+		// A line starts at the range's first byte only if the byte before it ends a line
+		map(start-1);
+		while(true) {
+			int newline = findNewline(0);
+			if(newline >= 0) {
+				cursor = newline+1;
+				return;
+			}
+			if(bufStart+buf.limit() >= size) {
+				cursor = buf.limit();
+				return;
+			}
+			map(bufStart+buf.limit());
+		}
+	}
+
+	/**
+	 * @return For each column of the file, the index of the FlightState variable it holds,
+	 * or -1 if it is ignored (see ReadOpenSkyFile.csvColumns)
+	 */
+	public int[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return The offset of the first byte after the header, or the start of the range
+	 */
+	public long getDataStart() {
+		return dataStart;
+	}
+
+	/**
+	 * @return The byte just past the range, or the size of the file
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return The file being read
+	 */
+	public File getFile() {
+		return path;
+	}
+
+	@Override
+	public FlightState next() throws IOException {
+		if(!nextLine()) {
+			return null;
+		}
+		return parser.parse(buf, lineStart, lineStop);
+	}
+
+	@Override
+	public boolean fill(FlightStateBatch batch) throws IOException {
+		boolean any = false;
+		while(!batch.isFull() && nextLine()) {
+			any = true;
+			try {
+				parser.parseInto(buf, lineStart, lineStop, batch);
+			} catch(NumberFormatException e) {
+				malformed++;
+			}
+		}
+		return any;
+	}
+
+	@Override
+	public long getMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * Finds the next non-empty line, setting lineStart and lineStop.
+	 * @return False at the end of the range
+	 */
+	private boolean nextLine() throws IOException {
+		while(true) {
+			if(bufStart+cursor >= end) {
+				return false;
+			}
+			int lineEnd = findNewline(cursor);
+			if(lineEnd < 0) {
+				if(bufStart+buf.limit() < size) {
+					// The line runs past this window; start the next window at the line
+					if(cursor == 0) {
+						throw new IOException("Line at byte "+bufStart+" is longer than "+window+" bytes.");
+					}
+					map(bufStart+cursor);
+					continue;
+				}
+				if(cursor >= buf.limit()) {
+					return false;
+				}
+				lineEnd = buf.limit(); // last line, without a line terminator
+			}
+			lineStart = cursor;
+			lineStop = lineEnd;
+			cursor = lineEnd+1;
+			if(lineStop > lineStart && buf.get(lineStop-1) == '\r') {
+				lineStop--;
+			}
+			if(lineStop > lineStart) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the pages of the range from disk, so that parsing it doesn't wait on the disk.
+	 * Only the part of the range in the current window is loaded.
+	 */
+	public void load() {
+		int stop = (int)Math.min(buf.limit(), Math.max(cursor, end-bufStart));
+		int sum = 0;
+		for(int i = cursor; i < stop; i += pageSize) {
+			sum += buf.get(i);
+		}
+		touched = sum;
+	}
+
+	private void map(long position) throws IOException {
+		bufStart = position;
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(window, size-position));
+		cursor = 0;
+	}
+
+	private int findNewline(int from) {
+		int limit = buf.limit();
+		for(int i = from; i < limit; i++) {
+			if(buf.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
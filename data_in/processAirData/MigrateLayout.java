@@ -0,0 +1,108 @@
+package processAirData;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+
+import geoAirData.CellLayout;
+import geoAirData.Geohash;
+
+/**
+ * Copies flight states from the old per-resolution table into the range-scannable layout
+ * described in "geoAirData.CellLayout".
+ *
+ * The old table, "openskyproject.openskydata", holds every state four times: once under each
+ * of its 4, 5, 6, and 7 digit geohashes. Only the 7-digit rows are copied, since the coarser
+ * rows are the same states again. Rows are written asynchronously with a bounded number of
+ * writes in flight. Writes are idempotent, so the copy can simply be rerun if it is interrupted.
+ *
+ * Usage: java processAirData.MigrateLayout contactPoint [firstHour lastHour]
+ *   firstHour and lastHour are UNIX time / 3600, and limit the copy to those hours.
+ *
+ * It is an offline tool, like the rest of this package, and is kept out of the web
+ * application. Its classpath needs the Cassandra driver and the shared geoAirData package.
+ *
+ * Once the copy is done and the servlet reads the new table, the old one can be dropped.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class MigrateLayout {
+
+	private static final String scanQuery = "SELECT timeinterval, geohash, flight, time, lat, lon"
+			+ " FROM openskyproject.openskydata;";
+	private static final String insertQuery = "INSERT INTO openskyproject.flightcells"
+			+ " (timeinterval, prefix, geohash, flight, time, lat, lon) VALUES (?, ?, ?, ?, ?, ?, ?);";
+
+	private static final int maxInFlight = 256;
+
+	private static final Executor sameThread = new Executor() {
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	public static void main(String[] args) throws InterruptedException {
+		if(args.length != 1 && args.length != 3) {
+			throw new IllegalArgumentException("Usage: MigrateLayout contactPoint [firstHour lastHour]");
+		}
+		int firstHour = args.length == 3 ? Integer.parseInt(args[1]) : Integer.MIN_VALUE;
+		int lastHour = args.length == 3 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+
+		Cluster cluster = Cluster.builder().addContactPoint(args[0]).withPort(9042).build();
+		try {
+			Session session = cluster.connect();
+			PreparedStatement insert = session.prepare(insertQuery);
+			Statement scan = new SimpleStatement(scanQuery).setFetchSize(5000);
+
+			final Semaphore inFlight = new Semaphore(maxInFlight);
+			final AtomicLong failed = new AtomicLong();
+			long copied = 0;
+
+			for(Row row : session.execute(scan)) {
+				String hex = row.getString(1);
+				int hour = row.getInt(0);
+				if(hex.length() != CellLayout.fullResolution || hour < firstHour || hour > lastHour) {
+					continue;
+				}
+				long geohash = Geohash.parseHex(hex);
+
+				inFlight.acquire();
+				final ResultSetFuture write = session.executeAsync(insert.bind(hour,
+						CellLayout.partitionOf(geohash), (int)geohash, row.getString(2), row.getInt(3),
+						row.getDouble(4), row.getDouble(5)));
+				write.addListener(new Runnable() {
+					public void run() {
+						inFlight.release();
+						try {
+							write.getUninterruptibly();
+						} catch(RuntimeException e) {
+							if(failed.getAndIncrement() == 0) {
+								System.out.println("Write failed: "+e);
+							}
+						}
+					}
+				}, sameThread);
+
+				if(++copied % 100000 == 0) {
+					System.out.println(copied+" states copied");
+				}
+			}
+
+			// Wait for the last writes
+			inFlight.acquire(maxInFlight);
+			System.out.println(copied+" states copied, "+failed.get()+" writes failed");
+		} finally {
+			cluster.close();
+		}
+	}
+
+}
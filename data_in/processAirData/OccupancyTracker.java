@@ -0,0 +1,97 @@
+package processAirData;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of which full-resolution geohash boxes have flight states in each hour, so that
+ * the box can be announced once on FlightState.occupancyTopic rather than with every state.
+ * The servlet loads the announced boxes to skip empty ones before querying Cassandra.
+ *
+ * Only the most recently used hours are remembered. If a state arrives for an hour that has
+ * been forgotten, its box is announced again. Announcements are idempotent, so that only
+ * costs a message.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class OccupancyTracker {
+
+	private final LinkedHashMap<Integer, CellSet> seen;
+
+	/**
+	 * @param maxSets How many hours to remember
+	 */
+	public OccupancyTracker(final int maxSets) {
+		seen = new LinkedHashMap<Integer, CellSet>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, CellSet> eldest) {
+				return size() > maxSets;
+			}
+		};
+	}
+
+	/**
+	 * Records that a box has a state in the given hour.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param cell The box's full-resolution geohash
+	 * @return True if this is the first state remembered for that box and hour
+	 */
+	public synchronized boolean markOccupied(int hour, int cell) {
+		Integer key = hour;
+		CellSet cells = seen.get(key);
+		if(cells == null) {
+			cells = new CellSet();
+			seen.put(key, cells);
+		}
+		return cells.add(cell);
+	}
+
+	/**
+	 * An open-addressing set of non-negative ints. Geohashes of up to 7 hex digits fit in 28 bits.
+	 */
+	private static class CellSet {
+		private static final int empty = -1;
+		private int[] table = newTable(64);
+		private int size;
+
+		private static int[] newTable(int capacity) {
+			int[] t = new int[capacity];
+			Arrays.fill(t, empty);
+			return t;
+		}
+
+		boolean add(int cell) {
+			if(2*(size+1) > table.length) {
+				int[] old = table;
+				table = newTable(old.length*2);
+				for(int c : old) {
+					if(c != empty) {
+						insert(c);
+					}
+				}
+			}
+			if(insert(cell)) {
+				size++;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean insert(int cell) {
+			int mask = table.length-1;
+			int mix = cell * 0x9E3779B9;
+			for(int i = (mix ^ (mix >>> 16)) & mask; ; i = (i+1) & mask) {
+				if(table[i] == cell) {
+					return false;
+				}
+				if(table[i] == empty) {
+					table[i] = cell;
+					return true;
+				}
+			}
+		}
+	}
+
+}
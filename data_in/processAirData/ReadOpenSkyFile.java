@@ -2,202 +2,285 @@ package processAirData;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import geoAirData.CellLayout;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
-import org.apache.kafka.common.errors.SerializationException;
 
 
 /**
- * Reads a CSV or JSON file for airline data, processes it, and sends it to Kafka.
+ * Reads CSV or JSON files for airline data, processes them, and sends them to Kafka.
+ * Files may be gzipped (.csv.gz, .json.gz) or packed in tar archives (.tar, .tar.gz, .tgz),
+ * and are read as they are, without being unpacked to disk. Archives written by ArchiveWriter
+ * (.osky) are read fastest, and can be replayed in part.
+ *
+ * Usage: java processAirData.ReadOpenSkyFile [options] [-list file] path...
+ *   Each path is a file of one of those kinds, or a directory that is searched recursively
+ *   for them.
+ *   -list names a file that lists more paths, one per line.
+ * Options:
+ *   -readers n    threads that open files and load CSV ranges from disk (default: 1)
+ *   -parsers n    threads that parse files and ranges (default: one per core)
+ *   -senders n    threads that serialize states and hand them to Kafka (default: 2)
+ *   -queue n      capacity of the queues between those stages (default: 64)
+ *   -inFlight n   most messages waiting for an acknowledgement from Kafka (default: 100000)
+ *   -chunkMB m    size of the ranges that CSV files are split into (default: 16)
+ *   -dedup p      drop repeated states of an aircraft in a box and hour, by policy FIRST_K or
+ *                 FIRST_LAST (see StateDeduplicator; default: send every state)
+ *   -dedupK k     states kept per aircraft, box, and hour under FIRST_K (default: 1)
+ *   -dedupRes r   hexadecimal digits in the boxes' geohashes (default: 5)
+ *   -dedupEntries n  (aircraft, box, hour) entries remembered (default: 1048576)
+ *   -partitionWeights file  weights of the 4-digit geohash boxes, for SpatialPartitioner
+ *                 (default: every box weighs the same)
+ *   -hours h1 h2  only replay hours h1 to h2 (UNIX time / 3600) of .osky archives
+ *   -region g     only replay the geohash box g (1 to 7 hexadecimal digits) of .osky archives
+ *
+ * All files are read in one JVM, through an IngestPipeline that shares a single Kafka producer.
+ *
  * @author Kevin Moss
  *
  */
 public class ReadOpenSkyFile {
 	
-	private static File f;
-	
-	private static int[] csvOrder = {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15};
-	private static boolean csvOrderDefault = true; //Code is optimized for default order.
-	
-	private static KafkaProducer<Object, Object> producer;
-	
 	/**
-	 * The main method finds and reads the file, creates FlightState objects, and passes
-	 * them as messages to Kafka.
+	 * The main method finds the files and passes them through an IngestPipeline, which
+	 * creates FlightState objects and sends them as messages to Kafka.
 	 * @param args
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	public static void main(String[] args) throws IOException {
-		//Get the file
-		if(args.length < 1) {
-			throw new IllegalArgumentException("A file must be specified.");
-		} else if (args.length > 1) {
-			throw new IllegalArgumentException("Too many ("+args.length+") arguments received.");
+	public static void main(String[] args) throws IOException, InterruptedException {
+		//Get the files
+		int readers = 1, parsers = Runtime.getRuntime().availableProcessors(), senders = 2;
+		int queueSize = 64, maxInFlight = 100000;
+		long chunkSize = 16L << 20;
+		StateDeduplicator.Policy dedup = null;
+		int dedupK = 1, dedupRes = 5, dedupEntries = 1 << 20;
+		String partitionWeights = null;
+		int firstHour = Integer.MIN_VALUE, lastHour = Integer.MAX_VALUE;
+		long startGeohash = 0, endGeohash = Long.MAX_VALUE;
+		List<File> files = new ArrayList<File>();
+		for(int i = 0; i < args.length; i++) {
+			boolean hasValue = i+1 < args.length;
+			if(args[i].equals("-readers") && hasValue) {
+				readers = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-parsers") && hasValue) {
+				parsers = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-senders") && hasValue) {
+				senders = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-queue") && hasValue) {
+				queueSize = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-inFlight") && hasValue) {
+				maxInFlight = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-chunkMB") && hasValue) {
+				chunkSize = Long.parseLong(args[++i]) << 20;
+			} else if(args[i].equals("-dedup") && hasValue) {
+				dedup = StateDeduplicator.Policy.valueOf(args[++i].toUpperCase());
+			} else if(args[i].equals("-dedupK") && hasValue) {
+				dedupK = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-dedupRes") && hasValue) {
+				dedupRes = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-dedupEntries") && hasValue) {
+				dedupEntries = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-partitionWeights") && hasValue) {
+				partitionWeights = args[++i];
+			} else if(args[i].equals("-hours") && i+2 < args.length) {
+				firstHour = Integer.parseInt(args[++i]);
+				lastHour = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-region") && hasValue) {
+				String box = args[++i];
+				int shift = 4*(CellLayout.fullResolution-box.length());
+				if(shift < 0) {
+					throw new IllegalArgumentException("A region has at most "+CellLayout.fullResolution+" digits: "+box);
+				}
+				startGeohash = Long.parseLong(box, 16) << shift;
+				endGeohash = startGeohash + (1L << shift);
+			} else if(args[i].equals("-list") && hasValue) {
+				for(String path : readList(new File(args[++i]))) {
+					addFiles(new File(path), files);
+				}
+			} else {
+				addFiles(new File(args[i]), files);
+			}
 		}
-		f = new File(args[0]);
-		if(!f.isFile()) {
-			throw new FileNotFoundException("No file found at path \""+args[0]+"\" or path is a directory.");
+		if(files.isEmpty()) {
+			throw new IllegalArgumentException("At least one .csv or .json file must be specified.");
 		}
 		
-		//Make the Kafka producer object
-		Properties props = new Properties();
-		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
-		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, io.confluent.kafka.serializers.KafkaAvroSerializer.class);
-		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, io.confluent.kafka.serializers.KafkaAvroSerializer.class);
-		props.put("schema.registry.url", "http://localhost:8081");
-		producer = new KafkaProducer<>(props);
+		KafkaProducer<Object, Object> producer = newProducer(partitionWeights);
 		
-		//Read the file, and send messages to Kafka
-		if(args[0].endsWith(".csv")) {
-			readCSV();
-		} else if(args[0].endsWith(".json")) {
-			readJSON();
-		} else {
-			throw new IllegalArgumentException("Only .csv and .json files are accepted");
+		//Read the files, and send messages to Kafka
+		try {
+			IngestPipeline pipeline = new IngestPipeline(producer, readers, parsers, senders, queueSize, maxInFlight, chunkSize);
+			if(dedup != null) {
+				pipeline.setDeduplicator(new StateDeduplicator(dedup, dedupK, dedupRes, dedupEntries, 4*senders));
+			}
+			pipeline.setArchiveSlice(firstHour, lastHour, startGeohash, endGeohash);
+			pipeline.run(files);
+		} finally {
+			producer.close();
 		}
-		
-		producer.close();
 	}
 	
 	/**
-	 * Reads a Comma-Separated-Values (CSV) file and sends the information to Kafka
-	 * @throws IOException
+	 * Makes the Kafka producer object, for Kafka at localhost:9092 and the schema registry
+	 * at localhost:8081.
+	 * @param partitionWeights A weights file for SpatialPartitioner, or null to weigh
+	 * every box the same
+	 * @return A producer
 	 */
-	public static void readCSV() throws IOException {
-		BufferedReader br = new BufferedReader(new FileReader(f));
-		String line;
-		if((line = br.readLine()) != null) {
-			setCSVorder(line);
-		}
-		
-		while((line = br.readLine()) != null) {
-			FlightState fs = getStateFromCSV(line);
-			sendToKafka(fs);
+	public static KafkaProducer<Object, Object> newProducer(String partitionWeights) {
+		Properties props = new Properties();
+		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, io.confluent.kafka.serializers.KafkaAvroSerializer.class);
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, FlightCellSerializer.class);
+		props.put("schema.registry.url", "http://localhost:8081");
+		props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, SpatialPartitioner.class);
+		if(partitionWeights != null) {
+			props.put(SpatialPartitioner.weightsConfig, partitionWeights);
 		}
-		
-		br.close();
+		return new KafkaProducer<>(props);
 	}
 	
 	/**
-	 * Sets the order of the variables read in the CSV file.
-	 * The first line in a CSV file should be a list of variable names.
-	 * @param firstLine A line of variable names, separated by commas.
+	 * Adds a file, or the readable files under a directory, to a list.
+	 * @param path A file or directory
+	 * @param files The list
+	 * @throws FileNotFoundException if nothing is found at the path
 	 */
-	public static void setCSVorder(String firstLine) {
-		String[] vars = firstLine.split(",");
-		csvOrder = new int[vars.length];
-		csvOrderDefault = false;
-		for(int i = 0; i < vars.length; i++) {
-			vars[i] = vars[i].trim();
-			switch(vars[i]) {
-			case "time":csvOrder[i]=0; break;
-			case "icao24":csvOrder[i]=1; break;
-			case "lat":csvOrder[i]=2; break;
-			case "lon":csvOrder[i]=3; break;
-			case "velocity":csvOrder[i]=4; break;
-			case "heading":csvOrder[i]=5; break;
-			case "vertrate":csvOrder[i]=6; break;
-			case "callsign":csvOrder[i]=7; break;
-			case "onground":csvOrder[i]=8; break;
-			case "alert":csvOrder[i]=9; break;
-			case "spi":csvOrder[i]=10; break;
-			case "squawk":csvOrder[i]=11; break;
-			case "baroaltitude":csvOrder[i]=12; break;
-			case "geoaltitude":csvOrder[i]=13; break;
-			case "lastposupdate":csvOrder[i]=14; break;
-			case "lastcontact":csvOrder[i]=15; break;
-			default: break; //Other variables are ignored
-			}
-		}
-		//if order is 0,1,2,...,15; then use optimized settings
-		if(vars.length == 16) {
-			csvOrderDefault = true;
-			for(int i = 0; i < 16; i++) {
-				if(csvOrder[i] != i) {
-					csvOrderDefault = false;
-					break;
+	static void addFiles(File path, List<File> files) throws FileNotFoundException {
+		if(path.isDirectory()) {
+			File[] children = path.listFiles();
+			if(children != null) {
+				Arrays.sort(children);
+				for(File child : children) {
+					if(child.isDirectory() || isAccepted(child.getName())) {
+						addFiles(child, files);
+					}
 				}
 			}
+		} else if(path.isFile()) {
+			if(!isAccepted(path.getName())) {
+				throw new IllegalArgumentException("Only .csv and .json files, gzipped or in tar archives, and "+ArchiveFormat.extension+" archives are accepted: "+path);
+			}
+			files.add(path);
+		} else {
+			throw new FileNotFoundException("No file found at path \""+path+"\".");
 		}
-		
 	}
 	
 	/**
-	 * Reads a line in a CSV file and returns the flight state corresponding to that file
-	 * @param line
-	 * @return
+	 * Reads the lines of a file list, skipping blank lines.
 	 */
-	public static FlightState getStateFromCSV(String line) {
-		String[] lineParts = line.split(",");
-		
-		if(!csvOrderDefault) {
-			String[] newParts = new String[16];
-			for(int i = 0; i < lineParts.length; i++) {
-				newParts[csvOrder[i]] = lineParts[i];
+	private static List<String> readList(File list) throws IOException {
+		List<String> paths = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(list));
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				if(!line.trim().isEmpty()) {
+					paths.add(line.trim());
+				}
 			}
-			lineParts = newParts;
+		} finally {
+			br.close();
 		}
-		return new FlightState(lineParts);
+		return paths;
 	}
 	
+	/**
+	 * @param name A file name
+	 * @return Whether openReader can read a file of that name
+	 */
+	public static boolean isAccepted(String name) {
+		String n = name.endsWith(".gz") ? name.substring(0, name.length()-3) : name;
+		return n.endsWith(".csv") || n.endsWith(".json") || n.endsWith(".tar") || name.endsWith(".tgz")
+				|| name.endsWith(ArchiveFormat.extension);
+	}
 	
 	/**
-	 * Reads a Javascript Object Notation (JSON) file and sends the data to Kafka.
-	 * This currently only supports records of live OpenSky data found at
-	 * "https://opensky-network.org/api/states/all". It does not support
-	 * JSON files found at "https://opensky-network.org/datasets/states/".
-	 * @throws IOException 
+	 * Opens a reader for a file, of any kind that isAccepted. Plain CSV files are
+	 * memory-mapped, and archives are read by ArchiveReader; others are streamed.
+	 * @param f A file
+	 * @return A reader
+	 * @throws IOException
 	 */
-	public static void readJSON() throws IOException {
-		BufferedReader br = new BufferedReader(new FileReader(f));
-		String line;
-		if((line = br.readLine()) != null) {
-			String [] flightStates = parseJSON(line);
-			for(String state : flightStates) {
-				FlightState fs = new FlightState(state);
-				sendToKafka(fs);
-			}
+	public static StateReader openReader(File f) throws IOException {
+		if(f.getName().endsWith(".csv")) {
+			return new MappedCsvReader(f);
+		} else if(f.getName().endsWith(ArchiveFormat.extension)) {
+			return new ArchiveReader(f);
 		}
-		br.close();
+		return openReader(f.getName(), new FileInputStream(f));
 	}
 	
 	/**
-	 * Parses JSON data corresponding to a live state
-	 * @param line A (long) String corresponding to a JSON file
-	 * @return An array of strings corresponding to flight states
+	 * Opens a reader for a stream, choosing the format by the name's extension. Compressed
+	 * streams are inflated on a thread of their own (see AsyncInputStream).
+	 * @param name The name of the file in the stream
+	 * @param in The stream. It is closed when the reader is closed.
+	 * @return A reader
+	 * @throws IOException
 	 */
-	public static String[] parseJSON(String line) {
-		String temp = line.replaceFirst("\\{\"time\":[0-9]+,\"states\":\\[\\[", "");
-		String[] states = temp.split("\\],\\[");
-		states[states.length-1].replaceAll("\\]\\]\\}", "");
-		return states;
+	public static StateReader openReader(String name, InputStream in) throws IOException {
+		if(name.endsWith(".gz") || name.endsWith(".tgz")) {
+			in = new AsyncInputStream(new GZIPInputStream(in, 64*1024), "inflate-"+name);
+			name = name.endsWith(".tgz") ? name.substring(0, name.length()-4)+".tar" : name.substring(0, name.length()-3);
+		}
+		if(name.endsWith(".tar")) {
+			return new TarStateReader(new TarInputStream(in));
+		} else if(name.endsWith(".csv")) {
+			return new StreamCsvReader(in);
+		} else if(name.endsWith(".json")) {
+			return new JsonStateReader(in);
+		}
+		in.close();
+		throw new IllegalArgumentException("Only .csv and .json files, gzipped or in tar archives, are accepted: "+name);
 	}
 	
-	
-	
 	/**
-	 * Sends messages to Kafka for a given flight state.
-	 * For faster user-side queries, messages are sent for multiple Geohash resolutions.
-	 * @param fs A FlightState
+	 * Maps the columns of a CSV file to FlightState variables.
+	 * @param firstLine A line of variable names, separated by commas.
+	 * @return For each column, the index of its variable in the default order
+	 * (see FlightState), or -1 for variables that are ignored
 	 */
-	public static void sendToKafka(FlightState fs) {
-		try {
-			producer.send(FlightState.kafkaAvroRecord(fs, 4));
-			producer.send(FlightState.kafkaAvroRecord(fs, 5));
-			producer.send(FlightState.kafkaAvroRecord(fs, 6));
-			producer.send(FlightState.kafkaAvroRecord(fs, 7));
-		} catch(SerializationException e) {
-			System.out.println("Serialization Exception: "+e);
-		} catch(IllegalArgumentException e) {
-			// Incomplete flight state is skipped without notification
+	public static int[] csvColumns(String firstLine) {
+		String[] vars = firstLine.split(",");
+		int[] columns = new int[vars.length];
+		for(int i = 0; i < vars.length; i++) {
+			vars[i] = vars[i].trim();
+			switch(vars[i]) {
+			case "time":columns[i]=0; break;
+			case "icao24":columns[i]=1; break;
+			case "lat":columns[i]=2; break;
+			case "lon":columns[i]=3; break;
+			case "velocity":columns[i]=4; break;
+			case "heading":columns[i]=5; break;
+			case "vertrate":columns[i]=6; break;
+			case "callsign":columns[i]=7; break;
+			case "onground":columns[i]=8; break;
+			case "alert":columns[i]=9; break;
+			case "spi":columns[i]=10; break;
+			case "squawk":columns[i]=11; break;
+			case "baroaltitude":columns[i]=12; break;
+			case "geoaltitude":columns[i]=13; break;
+			case "lastposupdate":columns[i]=14; break;
+			case "lastcontact":columns[i]=15; break;
+			default: columns[i]=-1; break; //Other variables are ignored
+			}
 		}
+		return columns;
 	}
-	
-	
 
 }
@@ -0,0 +1,143 @@
+package processAirData;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import geoAirData.CellLayout;
+import geoAirData.Geohash;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Sends records for nearby geohash boxes to the same Kafka partition.
+ *
+ * Records are keyed by key(hour, prefix), where prefix is the box's partition in
+ * "geoAirData.CellLayout" (its 4-digit geohash). Geohashes are Morton codes, so boxes that are
+ * close in geohash order are close on the map. The partitioner cuts that order into as many
+ * contiguous runs as the topic has partitions, and each run goes to one partition. A box's
+ * partition doesn't change from hour to hour.
+ *
+ * Runs are cut by weight rather than by count, so that busy regions such as Europe and the
+ * United States are spread over several partitions while the oceans share one. Weights are
+ * read from the file named by the "spatial.partitioner.weights" setting, with one line per box:
+ *
+ *   prefix weight
+ *
+ * where prefix is a 4-digit hexadecimal geohash and weight is, for instance, the number of
+ * states in that box during a typical hour. Boxes that aren't listed weigh nothing. Without a
+ * file, every box weighs the same.
+ *
+ * Records without a key are spread over the partitions in turn, and other keys are hashed as
+ * Kafka's default partitioner does.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class SpatialPartitioner implements Partitioner {
+
+	public static final String weightsConfig = "spatial.partitioner.weights";
+
+	private static final int boxes = 1 << 4*CellLayout.partitionResolution;
+
+	private double[] weights;
+
+	// For each partition count, the partition of each box
+	private final ConcurrentHashMap<Integer, int[]> tables = new ConcurrentHashMap<Integer, int[]>();
+	private final AtomicInteger unkeyed = new AtomicInteger();
+
+	/**
+	 * Makes the key for a record.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param prefix The box's partition in "geoAirData.CellLayout"
+	 * @return A key
+	 */
+	public static Long key(int hour, int prefix) {
+		return ((long)hour << 32) | prefix;
+	}
+
+	@Override
+	public void configure(Map<String, ?> configs) {
+		weights = new double[boxes];
+		Object file = configs.get(weightsConfig);
+		if(file == null) {
+			Arrays.fill(weights, 1);
+			return;
+		}
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(file.toString()));
+			try {
+				String line;
+				while((line = br.readLine()) != null) {
+					String[] parts = line.trim().split("\\s+");
+					if(parts.length == 2) {
+						weights[(int)Geohash.parseHex(parts[0]) & (boxes-1)] += Double.parseDouble(parts[1]);
+					}
+				}
+			} finally {
+				br.close();
+			}
+		} catch(IOException e) {
+			throw new KafkaException("Could not read partition weights from "+file, e);
+		}
+		double total = 0;
+		for(double w : weights) {
+			total += w;
+		}
+		if(total <= 0) {
+			throw new KafkaException("Partition weights in "+file+" add up to nothing.");
+		}
+	}
+
+	@Override
+	public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+		List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
+		int count = partitions.size();
+		if(key instanceof Long) {
+			return table(count)[(int)((Long)key & (boxes-1))];
+		}
+		if(keyBytes == null) {
+			return Utils.toPositive(unkeyed.getAndIncrement()) % count;
+		}
+		return Utils.toPositive(Utils.murmur2(keyBytes)) % count;
+	}
+
+	/**
+	 * Gets the partition of each box for a number of partitions, cutting the boxes into runs
+	 * of about equal weight.
+	 */
+	private int[] table(int count) {
+		int[] table = tables.get(count);
+		if(table != null) {
+			return table;
+		}
+		double total = 0;
+		for(double w : weights) {
+			total += w;
+		}
+		table = new int[boxes];
+		double before = 0;
+		for(int box = 0; box < boxes; box++) {
+			// A box goes to the run its midpoint falls in
+			double middle = before + weights[box]/2;
+			table[box] = Math.min(count-1, (int)(middle/total*count));
+			before += weights[box];
+		}
+		tables.put(count, table);
+		return table;
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,204 @@
+package processAirData;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import geoAirData.CellLayout;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Thins out flight states that add nothing to a heat map: repeated states of the same aircraft
+ * in the same geohash box during the same hour.
+ *
+ * OpenSky reports an aircraft's position about every 10 seconds, so a cruising aircraft leaves
+ * many states in each coarse box it crosses. A density map at that resolution only needs a few
+ * of them. The deduplicator remembers, for each (aircraft, box, hour), how many states have
+ * been sent, and applies a policy:
+ *
+ *   FIRST_K     send the first k states and drop the rest (k = 1 keeps only the first)
+ *   FIRST_LAST  send the first state at once, and hold back the latest of the others, which is
+ *               sent when the entry is forgotten or the deduplicator is flushed
+ *
+ * Since each state is stored once, at full resolution, thinning at a coarse resolution thins the
+ * points behind every finer resolution too. The resolution is therefore configurable: the
+ * coarser it is, the fewer states are kept and the sparser fine maps become.
+ *
+ * Entries are kept in an LRU of bounded size, split into shards by aircraft so that sender
+ * threads rarely contend. Entries more than an hour older than the newest hour a shard has
+ * seen are dropped, as they can no longer match new states. A forgotten entry only costs
+ * a repeated state.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class StateDeduplicator {
+
+	public enum Policy { FIRST_K, FIRST_LAST }
+
+	/**
+	 * What is remembered for one (aircraft, box, hour).
+	 */
+	private static class Entry {
+		final int hour;
+		int sent;
+		ProducerRecord<Object, Object> held;
+
+		Entry(int hour) {
+			this.hour = hour;
+		}
+	}
+
+	/**
+	 * One shard of the LRU. Records released by evictions are collected in released.
+	 */
+	private static class Shard extends LinkedHashMap<Long, Entry> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+		private int newestHour = Integer.MIN_VALUE;
+		private List<ProducerRecord<Object, Object>> released;
+
+		Shard(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+			if(size() <= maxEntries) {
+				return false;
+			}
+			release(eldest.getValue());
+			return true;
+		}
+
+		void release(Entry e) {
+			if(e.held != null) {
+				released.add(e.held);
+				e.held = null;
+			}
+		}
+
+		/**
+		 * Drops the entries of hours that have passed.
+		 */
+		void advanceTo(int hour) {
+			if(hour <= newestHour) {
+				return;
+			}
+			newestHour = hour;
+			Iterator<Entry> it = values().iterator();
+			while(it.hasNext()) {
+				Entry e = it.next();
+				if(e.hour < hour-1) {
+					release(e);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private final Policy policy;
+	private final int k;
+	private final int shift;
+	private final Shard[] shards;
+
+	/**
+	 * @param policy Which states to keep
+	 * @param k For FIRST_K, how many states to keep per (aircraft, box, hour)
+	 * @param resolution Number of hexadecimal digits in the boxes' geohashes, at most
+	 * CellLayout.fullResolution
+	 * @param maxEntries How many (aircraft, box, hour) entries to remember in all
+	 * @param shardCount How many shards to split the entries into
+	 */
+	public StateDeduplicator(Policy policy, int k, int resolution, int maxEntries, int shardCount) {
+		if(resolution < 1 || resolution > CellLayout.fullResolution) {
+			throw new IllegalArgumentException("Resolution must be between 1 and "+CellLayout.fullResolution+".");
+		}
+		if(k < 1 || maxEntries < 1 || shardCount < 1) {
+			throw new IllegalArgumentException("k, maxEntries, and shardCount must be positive.");
+		}
+		this.policy = policy;
+		this.k = k;
+		this.shift = 4*(CellLayout.fullResolution-resolution);
+		shards = new Shard[shardCount];
+		for(int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(Math.max(1, maxEntries/shardCount));
+		}
+	}
+
+	/**
+	 * Decides whether to send a state.
+	 * @param icao24 The aircraft's transponder address
+	 * @param geohash The state's full-resolution geohash
+	 * @param hour The state's hour (UNIX time / 3600)
+	 * @param record The state's record
+	 * @param send Records to send now are added here. These may include held records of other
+	 * states, released as their entries are forgotten.
+	 */
+	public void admit(String icao24, long geohash, int hour, ProducerRecord<Object, Object> record,
+			List<ProducerRecord<Object, Object>> send) {
+		int aircraft = aircraftKey(icao24);
+		long key = ((long)aircraft << 40) | ((geohash >>> shift) << 12) | (hour & 0xfff);
+		Shard shard = shards[(aircraft & 0x7fffffff) % shards.length];
+		synchronized(shard) {
+			shard.released = send;
+			try {
+				shard.advanceTo(hour);
+				Entry e = shard.get(key);
+				if(e == null || e.hour != hour) {
+					e = new Entry(hour);
+					shard.put(key, e);
+				}
+				if(e.sent == 0 || (policy == Policy.FIRST_K && e.sent < k)) {
+					e.sent++;
+					send.add(record);
+				} else if(policy == Policy.FIRST_LAST) {
+					e.held = record;
+				}
+			} finally {
+				shard.released = null;
+			}
+		}
+	}
+
+	/**
+	 * Releases every held record and forgets everything.
+	 * @param send The held records are added here
+	 */
+	public void flush(List<ProducerRecord<Object, Object>> send) {
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				shard.released = send;
+				for(Entry e : shard.values()) {
+					shard.release(e);
+				}
+				shard.clear();
+				shard.released = null;
+			}
+		}
+	}
+
+	/**
+	 * Reduces an icao24 address to 24 bits. Addresses are normally 6 hexadecimal digits;
+	 * anything else is hashed, and may rarely share a key with another aircraft.
+	 */
+	private static int aircraftKey(String icao24) {
+		int n = icao24.length();
+		if(n > 0 && n <= 6) {
+			int value = 0;
+			for(int i = 0; i < n; i++) {
+				int d = Character.digit(icao24.charAt(i), 16);
+				if(d < 0) {
+					return icao24.hashCode() & 0xffffff;
+				}
+				value = value << 4 | d;
+			}
+			return value;
+		}
+		return icao24.hashCode() & 0xffffff;
+	}
+
+}
@@ -0,0 +1,36 @@
+package processAirData;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of flight states, read one at a time or a batch at a time.
+ * @author Kevin Moss
+ *
+ */
+public interface StateReader extends Closeable {
+
+	/**
+	 * Reads the next flight state.
+	 * @return A FlightState, or null when there are no more
+	 * @throws IOException
+	 * @throws NumberFormatException if a numeric field of the state isn't a number. The state is
+	 * skipped, and the reader can carry on with the next one.
+	 */
+	FlightState next() throws IOException;
+
+	/**
+	 * Reads flight states into a batch until the batch is full or there are no more.
+	 * States with malformed numbers are skipped and counted (see getMalformed).
+	 * @param batch A batch that isn't full, which is appended to
+	 * @return False if there were no more states, so none were added
+	 * @throws IOException
+	 */
+	boolean fill(FlightStateBatch batch) throws IOException;
+
+	/**
+	 * @return The number of states that fill has skipped because of malformed numbers
+	 */
+	long getMalformed();
+
+}
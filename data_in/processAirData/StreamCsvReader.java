@@ -0,0 +1,136 @@
+package processAirData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the flight states in an OpenSky CSV file from a stream, such as a compressed file or
+ * a file inside an archive, which can't be memory-mapped.
+ *
+ * Bytes are read into a buffer and each line is parsed in place by a CsvLineParser, as in
+ * MappedCsvReader. A line that runs past the end of the buffer is moved to the front before
+ * the buffer is refilled.
+ *
+ * The first line of the stream should be a list of variable names; it sets the column order.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class StreamCsvReader implements StateReader {
+
+	private final InputStream in;
+	private byte[] bytes = new byte[1 << 20];
+	private ByteBuffer buf = ByteBuffer.wrap(bytes);
+	private int pos, limit;
+	private boolean eof;
+	private final CsvLineParser parser;
+
+	// The line found by nextLine
+	private int lineStart, lineStop;
+	private long malformed;
+
+	/**
+	 * Reads the header of a stream.
+	 * @param in A stream holding a CSV file. It is closed when the reader is closed.
+	 * @throws IOException
+	 */
+	public StreamCsvReader(InputStream in) throws IOException {
+		this.in = in;
+		String header = nextLine() ? new String(bytes, lineStart, lineStop-lineStart, StandardCharsets.US_ASCII) : "";
+		parser = new CsvLineParser(ReadOpenSkyFile.csvColumns(header));
+	}
+
+	@Override
+	public FlightState next() throws IOException {
+		if(!nextLine()) {
+			return null;
+		}
+		return parser.parse(buf, lineStart, lineStop);
+	}
+
+	@Override
+	public boolean fill(FlightStateBatch batch) throws IOException {
+		boolean any = false;
+		while(!batch.isFull() && nextLine()) {
+			any = true;
+			try {
+				parser.parseInto(buf, lineStart, lineStop, batch);
+			} catch(NumberFormatException e) {
+				malformed++;
+			}
+		}
+		return any;
+	}
+
+	@Override
+	public long getMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * Finds the next non-empty line, setting lineStart and lineStop.
+	 * @return False at the end of the stream
+	 */
+	private boolean nextLine() throws IOException {
+		while(true) {
+			int newline = -1;
+			for(int i = pos; i < limit; i++) {
+				if(bytes[i] == '\n') {
+					newline = i;
+					break;
+				}
+			}
+			int lineEnd;
+			if(newline >= 0) {
+				lineEnd = newline;
+			} else if(!eof) {
+				refill();
+				continue;
+			} else if(pos < limit) {
+				lineEnd = limit; // last line, without a line terminator
+			} else {
+				return false;
+			}
+			lineStart = pos;
+			lineStop = lineEnd;
+			pos = Math.min(lineEnd+1, limit);
+			if(lineStop > lineStart && bytes[lineStop-1] == '\r') {
+				lineStop--;
+			}
+			if(lineStop > lineStart) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Moves the unread bytes to the front of the buffer, growing it if they fill it, then
+	 * reads more.
+	 */
+	private void refill() throws IOException {
+		int unread = limit-pos;
+		if(unread == bytes.length) {
+			bytes = Arrays.copyOf(bytes, 2*bytes.length);
+			buf = ByteBuffer.wrap(bytes);
+		} else if(pos > 0) {
+			System.arraycopy(bytes, pos, bytes, 0, unread);
+		}
+		pos = 0;
+		limit = unread;
+		int r = in.read(bytes, limit, bytes.length-limit);
+		if(r < 0) {
+			eof = true;
+		} else {
+			limit += r;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,165 @@
+package processAirData;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the files in a tar archive, one after another, without unpacking it to disk.
+ *
+ * Only what OpenSky's archives need is supported: ustar and old-style headers, regular files,
+ * and sizes in octal. Directories, links, and extended headers (such as long names) are
+ * skipped over.
+ *
+ * Call nextEntry to move to the next file, then read it through this stream. The stream
+ * ends at the end of each file.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class TarInputStream extends InputStream {
+
+	private static final int blockSize = 512;
+
+	private final InputStream in;
+	private final byte[] header = new byte[blockSize];
+	private long remaining, padding;
+
+	/**
+	 * @param in The archive. It is closed when this stream is closed.
+	 */
+	public TarInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Moves to the next regular file in the archive, skipping the rest of the current one.
+	 * @return The file's name, or null at the end of the archive
+	 * @throws IOException
+	 */
+	public String nextEntry() throws IOException {
+		while(true) {
+			skipFully(remaining+padding);
+			remaining = 0;
+			padding = 0;
+			if(!readHeader()) {
+				return null;
+			}
+			long size = octal(header, 124, 12);
+			char type = (char)header[156];
+			String name = string(header, 0, 100);
+			if(string(header, 257, 6).equals("ustar")) {
+				String prefix = string(header, 345, 155);
+				if(!prefix.isEmpty()) {
+					name = prefix+"/"+name;
+				}
+			}
+			remaining = size;
+			padding = (blockSize - size%blockSize) % blockSize;
+			if(type == '0' || type == '\0') {
+				return name;
+			}
+		}
+	}
+
+	/**
+	 * Reads a header block.
+	 * @return False at the end of the archive, which is marked by an empty block
+	 */
+	private boolean readHeader() throws IOException {
+		int n = 0;
+		while(n < blockSize) {
+			int r = in.read(header, n, blockSize-n);
+			if(r < 0) {
+				if(n == 0) {
+					return false;
+				}
+				throw new EOFException("Tar archive ends inside a header.");
+			}
+			n += r;
+		}
+		for(byte b : header) {
+			if(b != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long octal(byte[] b, int off, int len) throws IOException {
+		long value = 0;
+		for(int i = off; i < off+len; i++) {
+			byte c = b[i];
+			if(c == 0 || c == ' ') {
+				if(value != 0) {
+					break;
+				}
+				continue;
+			}
+			if(c < '0' || c > '7') {
+				throw new IOException("Unsupported tar header: size is not octal.");
+			}
+			value = value*8 + (c-'0');
+		}
+		return value;
+	}
+
+	private static String string(byte[] b, int off, int len) {
+		int end = off;
+		while(end < off+len && b[end] != 0) {
+			end++;
+		}
+		return new String(b, off, end-off, StandardCharsets.UTF_8).trim();
+	}
+
+	private void skipFully(long n) throws IOException {
+		byte[] buf = null;
+		while(n > 0) {
+			long skipped = in.skip(n);
+			if(skipped <= 0) {
+				if(buf == null) {
+					buf = new byte[8192];
+				}
+				int r = in.read(buf, 0, (int)Math.min(n, buf.length));
+				if(r < 0) {
+					throw new EOFException("Tar archive ends inside a file.");
+				}
+				skipped = r;
+			}
+			n -= skipped;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(remaining <= 0) {
+			return -1;
+		}
+		int b = in.read();
+		if(b < 0) {
+			throw new EOFException("Tar archive ends inside a file.");
+		}
+		remaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(remaining <= 0) {
+			return -1;
+		}
+		int r = in.read(b, off, (int)Math.min(len, remaining));
+		if(r < 0) {
+			throw new EOFException("Tar archive ends inside a file.");
+		}
+		remaining -= r;
+		return r;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,136 @@
+package processAirData;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the flight states of every CSV and JSON file in a tar archive, compressed or not,
+ * in the order they appear. Other files in the archive are skipped, including .osky archives,
+ * which need random access.
+ *
+ * A file that can't be read, such as one with malformed JSON or a corrupt .gz, is logged and
+ * skipped, and the rest of the archive is read as usual.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class TarStateReader implements StateReader {
+
+	private final TarInputStream tar;
+	private StateReader current;
+	private String currentName;
+	private long malformed, unreadable;
+	private boolean done;
+
+	/**
+	 * @param tar An archive. It is closed when the reader is closed.
+	 */
+	public TarStateReader(TarInputStream tar) {
+		this.tar = tar;
+	}
+
+	@Override
+	public FlightState next() throws IOException {
+		while(nextReader()) {
+			try {
+				FlightState fs = current.next();
+				if(fs != null) {
+					return fs;
+				}
+			} catch(IOException e) {
+				skip(e);
+				continue;
+			}
+			endReader();
+		}
+		return null;
+	}
+
+	@Override
+	public boolean fill(FlightStateBatch batch) throws IOException {
+		boolean any = false;
+		while(!batch.isFull() && nextReader()) {
+			try {
+				if(current.fill(batch)) {
+					any = true;
+					continue;
+				}
+			} catch(IOException e) {
+				// The states read before the error are kept
+				any |= batch.size() > 0;
+				skip(e);
+				continue;
+			}
+			endReader();
+		}
+		return any;
+	}
+
+	/**
+	 * @return The number of files in the archive that couldn't be read to the end
+	 */
+	public long getUnreadable() {
+		return unreadable;
+	}
+
+	@Override
+	public long getMalformed() {
+		return malformed + (current == null ? 0 : current.getMalformed());
+	}
+
+	/**
+	 * Makes sure there is a reader for a file in the archive.
+	 * @return False at the end of the archive
+	 */
+	private boolean nextReader() throws IOException {
+		while(current == null && !done) {
+			String name = tar.nextEntry();
+			if(name == null) {
+				done = true;
+			} else if(ReadOpenSkyFile.isAccepted(name) && !name.endsWith(ArchiveFormat.extension)) {
+				currentName = name;
+				// Readers close their streams, but the archive must stay open for the next file
+				try {
+					current = ReadOpenSkyFile.openReader(name, new FilterInputStream(tar) {
+						@Override
+						public void close() {
+						}
+					});
+				} catch(IOException e) {
+					skip(e);
+				}
+			}
+		}
+		return current != null;
+	}
+
+	private void endReader() throws IOException {
+		malformed += current.getMalformed();
+		current.close();
+		current = null;
+	}
+
+	/**
+	 * Gives up on the current file. nextEntry skips whatever is left of it.
+	 */
+	private void skip(IOException e) {
+		unreadable++;
+		System.out.println("Could not read "+currentName+" in an archive: "+e);
+		if(current != null) {
+			try {
+				endReader();
+			} catch(IOException closing) {
+				current = null;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(current != null) {
+			current.close();
+		}
+		tar.close();
+	}
+
+}
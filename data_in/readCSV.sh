@@ -2,11 +2,13 @@
 
 # Recursively searches a within a directory for CSV files. These files should have air-traffic data
 # from The OpenSky Network: https://opensky-network.org/datasets/states/
-# Files are then ingested for messages and sent to Kafka
+# Files are then ingested for messages and sent to Kafka, all in one JVM.
+# THREADS sets how many threads parse files (or pieces of large files).
 
 export CLASSPATH=$CONFLUENT_HOME/share/java/kafka/*:/path/to/kafka-avro-serializer-3.3.0.jar\
 	:$CONFLUENT_HOME/share/java/confluent-common/*:$CONFLUENT_HOME/share/java/schema-registry/*\
-	:/directory/containing/processAirData
+	:/directory/containing/processAirData\
+	:/path/to/query_out/webapps/ROOT/WEB-INF/classes  # for the shared geoAirData package
 
 
-find $1 -name *.csv -exec java -cp $CLASSPATH processAirData.ReadOpenSkyFile {} \;
+java -cp $CLASSPATH processAirData.ReadOpenSkyFile -parsers ${THREADS:-$(nproc)} "$1"
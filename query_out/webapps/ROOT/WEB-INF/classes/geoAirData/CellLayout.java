@@ -0,0 +1,83 @@
+package geoAirData;
+
+import java.util.Arrays;
+
+/**
+ * How flight states are laid out in Cassandra. Each state is stored once, under its
+ * full-resolution geohash:
+ *
+ *   CREATE TABLE openskyproject.flightcells (
+ *     timeinterval int, prefix int, geohash int, flight text, time int, lat double, lon double,
+ *     PRIMARY KEY ((timeinterval, prefix), geohash, flight, time));
+ *
+ * The partition key is the hour and the geohash at partitionResolution. The geohash at
+ * fullResolution is the first clustering column, so the states in a box of any supported
+ * resolution are one contiguous range of a single partition.
+ *
+ * Resolution is the number of hexadecimal digits in a geohash.
+ *
+ * @author Kevin Moss
+ *
+ */
+public final class CellLayout {
+
+	public static final int fullResolution = 7;
+	public static final int partitionResolution = 4;
+
+	private CellLayout() {
+	}
+
+	/**
+	 * @param geohash A geohash at fullResolution
+	 * @return The partition that stores it
+	 */
+	public static int partitionOf(long geohash) {
+		return (int)(geohash >>> 4*(fullResolution-partitionResolution));
+	}
+
+	/**
+	 * @param cell A geohash with res digits
+	 * @param res Resolution of the geohash, from partitionResolution to fullResolution
+	 * @return The first full-resolution geohash inside the box
+	 */
+	public static long firstOf(long cell, int res) {
+		return cell << 4*(fullResolution-res);
+	}
+
+	/**
+	 * @param cell A geohash with res digits
+	 * @param res Resolution of the geohash, from partitionResolution to fullResolution
+	 * @return The full-resolution geohash just past the box
+	 */
+	public static long endOf(long cell, int res) {
+		return (cell+1) << 4*(fullResolution-res);
+	}
+
+	/**
+	 * Turns boxes into as few clustering ranges as possible. Boxes that are consecutive in
+	 * geohash order and share a partition become one range; in geohash order, the boxes of
+	 * any aligned 2x2 block are consecutive.
+	 *
+	 * @param cells Geohashes with res digits. The array isn't modified.
+	 * @param res Resolution of the geohashes, from partitionResolution to fullResolution
+	 * @return Pairs of full-resolution geohashes: the start (inclusive) of range i is at 2*i
+	 * and the end (exclusive) is at 2*i+1. Each range lies in partitionOf(start).
+	 */
+	public static long[] ranges(long[] cells, int res) {
+		long[] sorted = Arrays.copyOf(cells, cells.length);
+		Arrays.sort(sorted);
+		long[] ranges = new long[2*sorted.length];
+		int n = 0;
+		for(long cell : sorted) {
+			long first = firstOf(cell, res);
+			if(n > 0 && ranges[n-1] == first && partitionOf(first) == partitionOf(ranges[n-2])) {
+				ranges[n-1] = endOf(cell, res);
+			} else {
+				ranges[n++] = first;
+				ranges[n++] = endOf(cell, res);
+			}
+		}
+		return Arrays.copyOf(ranges, n);
+	}
+
+}
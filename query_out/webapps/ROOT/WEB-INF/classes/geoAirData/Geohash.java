@@ -0,0 +1,242 @@
+package geoAirData;
+
+/**
+ * Geohashing shared by ingestion ("processAirData") and the servlet ("queryAirData").
+ * The class has no dependencies, so it can sit on the servlet's classpath as well as the
+ * ingest classpath.
+ *
+ * A geohash of n bits alternates longitude and latitude bits, starting with longitude.
+ * Each coordinate's bits are the index of its cell when the coordinate's range is cut into
+ * 2^k equal cells, so a hash is computed by quantizing both coordinates and interleaving the
+ * bits of the two cell indices. Neighbors and ranges are found by splitting a hash back into
+ * its two indices and doing integer arithmetic on them.
+ *
+ * Geohash values should be viewed as a BitString. If the number of bits is divisible by 4,
+ * viewing the geohash as a HexString is also valuable; hex strings are always zero-padded to
+ * the requested number of digits, since leading digits are significant.
+ *
+ * @author Kevin Moss
+ *
+ */
+public final class Geohash {
+
+	private static final char[] hexChars = "0123456789abcdef".toCharArray();
+
+	// Per-thread scratch space for hex formatting. 16 digits cover a whole long.
+	private static final ThreadLocal<char[]> hexBuffer = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[16];
+		}
+	};
+
+	private Geohash() {
+	}
+
+	/**
+	 * Encodes GPS coordinates as a geohash. The result is identical to repeatedly bisecting
+	 * the longitude and latitude ranges, even for coordinates that sit exactly on a boundary.
+	 *
+	 * @param lat a double signifying latitude
+	 * @param lon a double signifying longitude
+	 * @param bits An integer assigning the accuracy of the geohash, at most 64
+	 * @return A long. Best viewed as a bitstring with leading 0s re-added
+	 */
+	public static long encode(double lat, double lon, int bits) {
+		int lonBits = (bits+1)/2;
+		int latBits = bits/2;
+		return interleave(quantize(lat, -90, 180, latBits), quantize(lon, -180, 360, lonBits), bits);
+	}
+
+	/**
+	 * Returns a hexadecimal string representing a geohash value.
+	 * Each additional hex digit increases accuracy.
+	 *
+	 * @param lat A double representing latitude
+	 * @param lon A double representing longitude
+	 * @param hexDigits Number of hexadecimal digits desired
+	 * @return A string denoting a hexadecimal number.
+	 */
+	public static String hex(double lat, double lon, int hexDigits) {
+		return toHex(encode(lat, lon, 4*hexDigits), hexDigits);
+	}
+
+	/**
+	 * Formats a geohash as a hexadecimal string with exactly the given number of digits.
+	 * @param hash A geohash
+	 * @param hexDigits Number of hexadecimal digits
+	 * @return A hexadecimal number in the form of a String
+	 */
+	public static String toHex(long hash, int hexDigits) {
+		char[] buf = hexBuffer.get();
+		appendHex(hash, hexDigits, buf, 0);
+		return new String(buf, 0, hexDigits);
+	}
+
+	/**
+	 * Writes a geohash as zero-padded hexadecimal digits into a buffer.
+	 * @param hash A geohash
+	 * @param hexDigits Number of hexadecimal digits to write
+	 * @param buf The buffer to write into
+	 * @param offset Position of the first digit
+	 * @return The position after the last digit
+	 */
+	public static int appendHex(long hash, int hexDigits, char[] buf, int offset) {
+		for(int i = offset+hexDigits-1; i >= offset; i--) {
+			buf[i] = hexChars[(int)(hash & 0xf)];
+			hash >>>= 4;
+		}
+		return offset+hexDigits;
+	}
+
+	/**
+	 * Parses a hexadecimal geohash.
+	 * @param hex A hexadecimal geohash
+	 * @return A long
+	 */
+	public static long parseHex(String hex) {
+		return Long.parseLong(hex, 16);
+	}
+
+	/**
+	 * The index of a coordinate's cell when its range is cut into 2^bits cells.
+	 * Values below the range fall in the first cell and values at or above it in the last.
+	 * @param value A coordinate
+	 * @param min The lower end of the coordinate's range
+	 * @param span The width of the coordinate's range
+	 * @param bits Number of bits in the index, at most 32
+	 * @return A cell index
+	 */
+	private static long quantize(double value, double min, double span, int bits) {
+		long cells = 1L << bits;
+		if(!(value >= min)) {
+			// NaN never compares below a midpoint, so bisection puts it in the last cell
+			return value != value ? cells-1 : 0;
+		}
+		long index = (long)((value-min)/span*cells);
+		if(index >= cells) {
+			index = cells-1;
+		}
+		/* The estimate can be off by one when value-min rounds onto a boundary. Boundaries
+		 * are multiples of span/cells, which doubles represent exactly, so they settle it. */
+		double width = span/cells;
+		if(index > 0 && value < min+index*width) {
+			index--;
+		} else if(index < cells-1 && value >= min+(index+1)*width) {
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * Spreads the low 32 bits of a value into the even bit positions of a long.
+	 */
+	private static long spread(long x) {
+		x &= 0x00000000FFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8))  & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4))  & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2))  & 0x3333333333333333L;
+		x = (x | (x << 1))  & 0x5555555555555555L;
+		return x;
+	}
+
+	/**
+	 * Gathers the even bit positions of a long into its low 32 bits. The inverse of spread.
+	 */
+	private static long compact(long x) {
+		x &= 0x5555555555555555L;
+		x = (x | (x >>> 1))  & 0x3333333333333333L;
+		x = (x | (x >>> 2))  & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x >>> 4))  & 0x00FF00FF00FF00FFL;
+		x = (x | (x >>> 8))  & 0x0000FFFF0000FFFFL;
+		x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+		return x;
+	}
+
+	/**
+	 * Builds a geohash from cell indices. The last bit of a hash with an even number of bits
+	 * is a latitude bit; with an odd number it is a longitude bit.
+	 * @param latIndex Latitude cell, using bits/2 bits
+	 * @param lonIndex Longitude cell, using (bits+1)/2 bits
+	 * @param bits Number of bits in the hash
+	 * @return A geohash
+	 */
+	public static long interleave(long latIndex, long lonIndex, int bits) {
+		if(bits % 2 == 0) {
+			return spread(latIndex) | (spread(lonIndex) << 1);
+		}
+		return spread(lonIndex) | (spread(latIndex) << 1);
+	}
+
+	/**
+	 * @param hash A geohash
+	 * @param bits Number of bits in the hash
+	 * @return The latitude cell index of the hash
+	 */
+	public static long latIndex(long hash, int bits) {
+		return bits % 2 == 0 ? compact(hash) : compact(hash >>> 1);
+	}
+
+	/**
+	 * @param hash A geohash
+	 * @param bits Number of bits in the hash
+	 * @return The longitude cell index of the hash
+	 */
+	public static long lonIndex(long hash, int bits) {
+		return bits % 2 == 0 ? compact(hash >>> 1) : compact(hash);
+	}
+
+	/**
+	 * Finds the hash a given number of cells away. Both directions wrap around, so stepping
+	 * north of the last row gives the first row.
+	 * @param hash A geohash
+	 * @param bits Number of bits in the hash
+	 * @param latSteps Cells to move north (negative for south)
+	 * @param lonSteps Cells to move east (negative for west)
+	 * @return A geohash with the same number of bits
+	 */
+	public static long neighbor(long hash, int bits, long latSteps, long lonSteps) {
+		long latMask = (1L << (bits/2)) - 1;
+		long lonMask = (1L << ((bits+1)/2)) - 1;
+		return interleave((latIndex(hash, bits)+latSteps) & latMask,
+				(lonIndex(hash, bits)+lonSteps) & lonMask, bits);
+	}
+
+	/**
+	 * The latitude cell containing a latitude.
+	 * @param lat Latitude
+	 * @param bits Number of bits in the hash
+	 * @return A latitude cell index
+	 */
+	public static long latIndex(double lat, int bits) {
+		return quantize(lat, -90, 180, bits/2);
+	}
+
+	/**
+	 * The longitude cell containing a longitude.
+	 * @param lon Longitude
+	 * @param bits Number of bits in the hash
+	 * @return A longitude cell index
+	 */
+	public static long lonIndex(double lon, int bits) {
+		return quantize(lon, -180, 360, (bits+1)/2);
+	}
+
+	/**
+	 * @param bits Number of bits in the hash
+	 * @return Height of a cell, in degrees of latitude
+	 */
+	public static double cellHeight(int bits) {
+		return 180.0/(1L << (bits/2));
+	}
+
+	/**
+	 * @param bits Number of bits in the hash
+	 * @return Width of a cell, in degrees of longitude
+	 */
+	public static double cellWidth(int bits) {
+		return 360.0/(1L << ((bits+1)/2));
+	}
+
+}
@@ -2,11 +2,18 @@ package queryAirData;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Session;
 
 /**
  * A cluster object used to connect to Cassandra.
+ *
+ * A connector is meant to be long-lived. Building a Cluster fetches metadata and
+ * discovers every host, so it should be done once (e.g. when a servlet is initialized)
+ * and the session shared by every request until the connector is closed.
  * @author Kevin Moss
  *
  */
@@ -15,9 +22,32 @@ public class CassandraConnector {
 	private Cluster cluster;
 	// Cassandra Session
 	private Session session;
-	
+
+	// Driver defaults for the protocol v3+ connection pool
+	public static final int defaultCoreConnections = 1;
+	public static final int defaultMaxConnections = 1;
+	public static final int defaultMaxRequestsPerConnection = 1024;
+
 	public void connect(final String node, final int port) {
-		cluster = Cluster.builder().addContactPoint(node).withPort(port).build();
+		connect(new String[] {node}, port, defaultCoreConnections, defaultMaxConnections,
+				defaultMaxRequestsPerConnection);
+	}
+
+	/**
+	 * Connects to a cluster with a sized connection pool.
+	 * @param nodes Contact points. Only one needs to be reachable; the rest of the ring is discovered.
+	 * @param port The native transport port
+	 * @param coreConnections Connections opened to each local host at startup
+	 * @param maxConnections Upper bound on connections to each local host
+	 * @param maxRequestsPerConnection Upper bound on concurrent requests per connection
+	 */
+	public void connect(final String[] nodes, final int port, final int coreConnections,
+			final int maxConnections, final int maxRequestsPerConnection) {
+		PoolingOptions pooling = new PoolingOptions()
+				.setConnectionsPerHost(HostDistance.LOCAL, coreConnections, maxConnections)
+				.setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection);
+		cluster = Cluster.builder().addContactPoints(nodes).withPort(port)
+				.withPoolingOptions(pooling).build();
 		final Metadata metadata = cluster.getMetadata();
 		System.out.printf("Connected to cluster %s\n", metadata.getClusterName());
 		for (final Host host : metadata.getAllHosts()) {
@@ -26,12 +56,23 @@ public class CassandraConnector {
 		}
 		session = cluster.connect();
 	}
-	
+
+	/**
+	 * Parses a query once so that later executions only send bound values.
+	 * @param query A CQL query with bind markers
+	 * @return A statement that can be bound and executed any number of times
+	 */
+	public PreparedStatement prepare(String query) {
+		return session.prepare(query);
+	}
+
 	public Session getSession() {
 		return session;
 	}
 	public void close() {
-		cluster.close();
+		if(cluster != null) {
+			cluster.close();
+		}
 	}
 
 }
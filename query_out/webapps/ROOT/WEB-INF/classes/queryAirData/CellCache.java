@@ -0,0 +1,253 @@
+package queryAirData;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the points of recently queried geohash boxes in memory, so that maps which overlap
+ * earlier ones (pans, zooms, and popular views) are mostly served without Cassandra.
+ *
+ * Entries are keyed by hour, resolution, box, and whether they hold density rollups or flight
+ * states. Each box's points are packed into one buffer of doubles (latitude, longitude, and,
+ * for density, the count), which can be kept off the heap.
+ *
+ * Hours that have been fully ingested never change (see IngestWatermark), so their boxes are
+ * kept until they are the least recently used and the cache is over its size. Any other hour
+ * may still be filling in, and its boxes are reloaded after a short time, as in OccupancyCache.
+ *
+ * Points are collected by a Builder while a box's rows arrive, before it is known how many there
+ * are. A builder stops collecting once its box passes maxBoxBytes, and such a box is never
+ * cached, so a busy box costs no more memory than the cache would allow it.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class CellCache {
+
+	// Estimated memory of an entry besides its points: key, entry, and buffer objects
+	private static final int entryOverhead = 128;
+
+	/**
+	 * The points of one box, as read from Cassandra.
+	 */
+	public static class Points {
+		private final ByteBuffer data;
+		private final int count;
+		private final boolean weighted;
+		final long loaded;
+		// Whether the hour was already closed when the points were read, so they are final
+		final boolean closed;
+
+		Points(ByteBuffer data, int count, boolean weighted, long loaded, boolean closed) {
+			this.data = data;
+			this.count = count;
+			this.weighted = weighted;
+			this.loaded = loaded;
+			this.closed = closed;
+		}
+
+		public int size() {
+			return count;
+		}
+		public double lat(int i) {
+			return data.getDouble(i*stride());
+		}
+		public double lon(int i) {
+			return data.getDouble(i*stride()+8);
+		}
+		/**
+		 * @return The count of a density point, or 1 for a flight state
+		 */
+		public long weight(int i) {
+			return weighted ? data.getLong(i*stride()+16) : 1;
+		}
+		private int stride() {
+			return weighted ? 24 : 16;
+		}
+		long bytes() {
+			return data.capacity()+entryOverhead;
+		}
+	}
+
+	/**
+	 * Collects the points of a box as its rows arrive. Made by newBuilder, before the rows are
+	 * read, so that it knows whether the hour was already closed when they were.
+	 */
+	public static class Builder {
+		private final boolean weighted;
+		private final int maxCount;
+		private final long started;
+		private final boolean closed;
+		private double[] lat = new double[16], lon = new double[16];
+		private long[] weight;
+		private int count;
+		private boolean overflowed;
+
+		/**
+		 * @param weighted Whether the points are density rollups, with counts
+		 * @param maxBytes Most memory the box's points may take
+		 * @param started When the rows started to be read
+		 * @param closed Whether the hour was closed then
+		 */
+		Builder(boolean weighted, long maxBytes, long started, boolean closed) {
+			this.weighted = weighted;
+			this.started = started;
+			this.closed = closed;
+			this.maxCount = (int)Math.min(Integer.MAX_VALUE, maxBytes/(weighted ? 24 : 16));
+			if(weighted) {
+				weight = new long[16];
+			}
+		}
+
+		public void add(double thisLat, double thisLon, long thisWeight) {
+			if(overflowed) {
+				return;
+			}
+			if(count == maxCount) {
+				// Too big to cache; let the points go
+				overflowed = true;
+				lat = lon = null;
+				weight = null;
+				return;
+			}
+			if(count == lat.length) {
+				int n = (int)Math.min(2L*count, maxCount);
+				lat = Arrays.copyOf(lat, n);
+				lon = Arrays.copyOf(lon, n);
+				if(weighted) {
+					weight = Arrays.copyOf(weight, n);
+				}
+			}
+			lat[count] = thisLat;
+			lon[count] = thisLon;
+			if(weighted) {
+				weight[count] = thisWeight;
+			}
+			count++;
+		}
+
+		Points build(boolean offHeap) {
+			int stride = weighted ? 24 : 16;
+			ByteBuffer data = offHeap ? ByteBuffer.allocateDirect(count*stride) : ByteBuffer.allocate(count*stride);
+			for(int i = 0; i < count; i++) {
+				data.putDouble(lat[i]);
+				data.putDouble(lon[i]);
+				if(weighted) {
+					data.putLong(weight[i]);
+				}
+			}
+			return new Points(data, count, weighted, started, closed);
+		}
+	}
+
+	private final LinkedHashMap<Long, Points> cells = new LinkedHashMap<Long, Points>(1024, 0.75f, true);
+	private final long maxBytes;
+	private final long maxBoxBytes;
+	private final boolean offHeap;
+	private final IngestWatermark watermark;
+	private final long openHourMillis;
+	private long bytes;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes Most memory the cached points may take, approximately
+	 * @param maxBoxBytes Most memory the points of one box may take. Bigger boxes aren't cached.
+	 * @param offHeap Whether to keep points in direct buffers, outside the heap
+	 * @param watermark Tells which hours are closed
+	 * @param openHourMillis How long boxes of a still-filling hour may be used before they are
+	 * reloaded
+	 */
+	public CellCache(long maxBytes, long maxBoxBytes, boolean offHeap, IngestWatermark watermark,
+			long openHourMillis) {
+		this.maxBytes = maxBytes;
+		this.maxBoxBytes = Math.min(maxBoxBytes, maxBytes);
+		this.offHeap = offHeap;
+		this.watermark = watermark;
+		this.openHourMillis = openHourMillis;
+	}
+
+	private static Long key(int hour, int res, boolean density, long cell) {
+		return (long)hour << 32 | (density ? 1L << 31 : 0) | (long)res << 28 | cell;
+	}
+
+	/**
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param res Number of hexadecimal digits in the geohash
+	 * @param density Whether density rollups are wanted rather than flight states
+	 * @param cell The geohash of the box
+	 * @return The box's points, or null if they aren't cached or are stale
+	 */
+	public Points get(int hour, int res, boolean density, long cell) {
+		long now = System.currentTimeMillis();
+		Points p;
+		synchronized(cells) {
+			p = cells.get(key(hour, res, density, cell));
+		}
+		if(p == null || (!p.closed && now - p.loaded >= openHourMillis)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return p;
+	}
+
+	/**
+	 * Call this before reading the box's rows. A box read before its hour closed may miss the
+	 * hour's last writes, so it is only cached for good if the hour was closed already.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param density Whether the points will be density rollups
+	 * @return A builder for the points of a box, to put once they have all arrived
+	 */
+	public Builder newBuilder(int hour, boolean density) {
+		return new Builder(density, maxBoxBytes, System.currentTimeMillis(), watermark.isClosed(hour));
+	}
+
+	/**
+	 * Caches the points of a box, evicting the least recently used boxes if the cache is full.
+	 * A box whose builder overflowed isn't cached.
+	 * Concurrent misses may both put a box; they put the same points.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param res Number of hexadecimal digits in the geohash
+	 * @param density Whether the points are density rollups
+	 * @param cell The geohash of the box
+	 * @param points The box's points
+	 */
+	public void put(int hour, int res, boolean density, long cell, Builder points) {
+		if(points.overflowed) {
+			return;
+		}
+		Points p = points.build(offHeap);
+		if(p.bytes() > maxBytes) {
+			return;
+		}
+		synchronized(cells) {
+			Points old = cells.put(key(hour, res, density, cell), p);
+			bytes += p.bytes() - (old == null ? 0 : old.bytes());
+			Iterator<Points> eldest = cells.values().iterator();
+			while(bytes > maxBytes) {
+				bytes -= eldest.next().bytes();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return Hit and miss counts, and how full the cache is
+	 */
+	public String describe() {
+		long h = hits.get(), m = misses.get();
+		int entries;
+		long used;
+		synchronized(cells) {
+			entries = cells.size();
+			used = bytes;
+		}
+		return h+" hits, "+m+" misses ("+(h+m == 0 ? 0 : 100*h/(h+m))+"% hit), "+evictions.get()+" evicted, "
+				+entries+" boxes in "+(used >> 10)+" of "+(maxBytes >> 10)+" KB";
+	}
+
+}
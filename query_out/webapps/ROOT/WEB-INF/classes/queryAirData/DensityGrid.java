@@ -0,0 +1,88 @@
+package queryAirData;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import geoAirData.Geohash;
+
+/**
+ * Sums points into geohash boxes, making one density surface out of several hours.
+ *
+ * Each box keeps its total weight and the weighted average position of its points. Density
+ * rollups already hold a count and an average position per box, so merging them this way gives
+ * exactly the rollup of the combined hours. Flight states count one each.
+ *
+ * A grid is filled by one thread. Grids of different hours are built separately and then
+ * merged with addAll.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class DensityGrid implements QueryService.PointSink {
+
+	private final int bits;
+	// For each box: total weight, and the weighted sums of latitude and longitude
+	private final HashMap<Long, double[]> cells = new HashMap<Long, double[]>();
+
+	/**
+	 * @param res Number of hexadecimal digits in the geohashes of the boxes
+	 */
+	public DensityGrid(int res) {
+		this.bits = 4*res;
+	}
+
+	@Override
+	public void add(double lat, double lon, long weight) {
+		long w = weight < 0 ? 1 : weight;
+		add(Geohash.encode(lat, lon, bits), w, lat*w, lon*w);
+	}
+
+	private void add(long cell, double weight, double latSum, double lonSum) {
+		double[] c = cells.get(cell);
+		if(c == null) {
+			c = new double[3];
+			cells.put(cell, c);
+		}
+		c[0] += weight;
+		c[1] += latSum;
+		c[2] += lonSum;
+	}
+
+	/**
+	 * Adds the boxes of another grid of the same resolution.
+	 * @param other A grid
+	 */
+	public void addAll(DensityGrid other) {
+		for(Map.Entry<Long, double[]> e : other.cells.entrySet()) {
+			double[] c = e.getValue();
+			add(e.getKey(), c[0], c[1], c[2]);
+		}
+	}
+
+	public boolean isEmpty() {
+		return cells.isEmpty();
+	}
+
+	public int size() {
+		return cells.size();
+	}
+
+	/**
+	 * Passes one weighted point per box, at the box's average position, in geohash order.
+	 * @param sink Receives the points
+	 */
+	public void writeTo(QueryService.PointSink sink) {
+		long[] keys = new long[cells.size()];
+		int n = 0;
+		for(Long cell : cells.keySet()) {
+			keys[n++] = cell;
+		}
+		Arrays.sort(keys);
+		for(long cell : keys) {
+			double[] c = cells.get(cell);
+			sink.add(c[1]/c[0], c[2]/c[0], Math.round(c[0]));
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package queryAirData;
+
+import geoAirData.Geohash;
+
+/**
+ * The set of geohash boxes that covers a map.
+ *
+ * A map is a square centered on a point, with sides 2*rad km long. The cover holds every box
+ * at the chosen resolution that touches the square, and nothing else:
+ *   - rows are clipped at the poles rather than wrapping around to the other pole,
+ *   - columns that cross the antimeridian wrap around, but a box is never listed twice,
+ *   - if the square needs more boxes than the budget allows, a coarser resolution is used.
+ *
+ * Resolution is the number of hexadecimal digits used in geohashes.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class GeohashCover {
+
+	// Kilometers per degree of latitude (and of longitude at the equator)
+	private static final double kmPerDegree = 111.32;
+
+	// Resolutions below this aren't stored
+	public static final int minResolution = 4;
+
+	private final int res;
+	private final long[] cells;
+
+	private GeohashCover(int res, long[] cells) {
+		this.res = res;
+		this.cells = cells;
+	}
+
+	/**
+	 * @return Number of hexadecimal digits in the cover's geohashes
+	 */
+	public int getResolution() {
+		return res;
+	}
+
+	/**
+	 * @return The cover's geohashes, each 4*getResolution() bits long
+	 */
+	public long[] getCells() {
+		return cells;
+	}
+
+	/**
+	 * @return The cover's geohashes as zero-padded hexadecimal strings
+	 */
+	public String[] getHexCells() {
+		String[] hex = new String[cells.length];
+		for(int i = 0; i < cells.length; i++) {
+			hex[i] = Geohash.toHex(cells[i], res);
+		}
+		return hex;
+	}
+
+	/**
+	 * Plans the cover of a map.
+	 * @param lat Lattitude of center point
+	 * @param lon Longitude of center point
+	 * @param rad Distance from the center to the middle of one side of the map, in km, at least 1
+	 * @param res The preferred resolution
+	 * @param maxCells The most boxes the cover may have. At minResolution, the map is cropped
+	 * around its center instead.
+	 * @return A cover
+	 */
+	public static GeohashCover plan(double lat, double lon, int rad, int res, int maxCells) {
+		double latDelta = rad/kmPerDegree;
+		double minLat = Math.max(-90, lat-latDelta);
+		double maxLat = Math.min(90, lat+latDelta);
+
+		/* Degrees of longitude shrink toward the poles, so the edge nearest a pole is the widest
+		 * in degrees. Past the point where that edge spans the globe, every column is needed. */
+		double widest = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+		double lonDelta = widest > 0 ? rad/(kmPerDegree*widest) : Double.POSITIVE_INFINITY;
+
+		for(;; res--) {
+			int bits = 4*res;
+			long columns = 1L << ((bits+1)/2);
+
+			long firstRow = Geohash.latIndex(minLat, bits);
+			long rows = Geohash.latIndex(maxLat, bits)-firstRow+1;
+
+			long firstColumn, width;
+			if(2*lonDelta+Geohash.cellWidth(bits) >= 360) {
+				firstColumn = 0;
+				width = columns;
+			} else {
+				firstColumn = Geohash.lonIndex(wrapLongitude(lon-lonDelta), bits);
+				long lastColumn = Geohash.lonIndex(wrapLongitude(lon+lonDelta), bits);
+				width = Math.min(columns, ((lastColumn-firstColumn) & (columns-1))+1);
+			}
+
+			if(rows*width > maxCells) {
+				if(res > minResolution) {
+					continue;
+				}
+				// Even the coarsest boxes are too many; keep the middle of the map
+				double scale = Math.sqrt((double)maxCells/(rows*width));
+				long keptRows = Math.max(1, (long)(rows*scale));
+				long keptWidth = Math.max(1, Math.min(maxCells/keptRows, (long)(width*scale)));
+				firstRow = Geohash.latIndex(lat, bits)-keptRows/2;
+				firstRow = Math.max(0, Math.min(firstRow, (1L << (bits/2))-keptRows));
+				firstColumn = (Geohash.lonIndex(lon, bits)-keptWidth/2) & (columns-1);
+				rows = keptRows;
+				width = keptWidth;
+			}
+
+			long[] cells = new long[(int)(rows*width)];
+			int n = 0;
+			for(long i = 0; i < rows; i++) {
+				for(long j = 0; j < width; j++) {
+					cells[n++] = Geohash.interleave(firstRow+i, (firstColumn+j) & (columns-1), bits);
+				}
+			}
+			return new GeohashCover(res, cells);
+		}
+	}
+
+	/**
+	 * Moves a longitude into [-180, 180).
+	 * @param lon A longitude, possibly past the antimeridian
+	 * @return The same meridian, in range
+	 */
+	private static double wrapLongitude(double lon) {
+		double wrapped = (lon+180) % 360;
+		if(wrapped < 0) {
+			wrapped += 360;
+		}
+		return wrapped-180;
+	}
+
+}
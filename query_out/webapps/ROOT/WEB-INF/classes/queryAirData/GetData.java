@@ -0,0 +1,352 @@
+package queryAirData;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import geoAirData.CellLayout;
+import geoAirData.Geohash;
+
+/**
+ * A servlet that returns the points of a map as data, for pages that draw the map themselves
+ * (see "query.html"), rather than as a whole HTML page like GetQuery.
+ *
+ * It takes the same parameters as GetQuery (timestamp or start, lattitude, longitude, radius,
+ * mode, end, and maxPoints), and may have:
+ *   format - "json" (the default) or "bin"
+ *
+ * JSON is an object: {"hour":h, "hours":n, "resolution":r, "weighted":w, "partial":p,
+ * "sampling":s, "points":[[lat,lon],...]}, where each point of a density map has its count as a
+ * third entry. A range starts at hour h and covers n hours; a single map has n = 1. A map of
+ * states thinned to the point budget (see PointSampler) keeps the share s of its states, each
+ * weighted by the states it stands for; otherwise s is 1. The share is also sent in the
+ * X-Sampling-Ratio header.
+ *
+ * Binary is an array of little-endian 32-bit integers, meant to be read as an Int32Array:
+ *   version (1), count n, flags (1 = weighted, 2 = partial, 4 = sampled), scale, first hour,
+ *   resolution,
+ *   n latitudes, n longitudes, and, for weighted maps, n counts.
+ * Latitudes and longitudes are in units of 1/scale degrees, and each is the difference from the
+ * one before it (the first from 0). Points are sent in geohash order, so the differences are
+ * small, and the body compresses well.
+ *
+ * Points are sorted before they are encoded, whatever order the lookups and the cell cache
+ * gave them in, so the same map always has the same body. Bodies are gzipped when the client
+ * accepts it, and have a strong ETag computed from their content, so unchanged maps get a 304.
+ * Maps of hours that have been fully ingested (see IngestWatermark) never change, and may be
+ * cached for a year. Maps of any other hour, such as the current one or one still being
+ * backfilled, may be cached for cache.openHourSeconds, as long as the cell cache keeps them.
+ * Partial maps are never cached.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class GetData extends HttpServlet {
+
+	private static final int version = 1;
+	private static final int scale = 100000;
+	private static final int minGzipBytes = 1024;
+	private static final int sortBits = 4*CellLayout.fullResolution;
+
+	private QueryService service;
+
+	/**
+	 * The points of a map, as they are received.
+	 */
+	private static class Points implements QueryService.PointSink {
+		double[] lat = new double[1024], lon = new double[1024];
+		long[] weight = new long[1024];
+		int size;
+
+		public void add(double thisLat, double thisLon, long thisWeight) {
+			if(size == lat.length) {
+				lat = Arrays.copyOf(lat, 2*size);
+				lon = Arrays.copyOf(lon, 2*size);
+				weight = Arrays.copyOf(weight, 2*size);
+			}
+			lat[size] = thisLat;
+			lon[size] = thisLon;
+			weight[size] = thisWeight;
+			size++;
+		}
+
+		/**
+		 * Puts the points in full-resolution geohash order, and points of the same box by
+		 * position and count.
+		 */
+		void sort() {
+			final long[] hash = new long[size];
+			Integer[] order = new Integer[size];
+			for(int i = 0; i < size; i++) {
+				hash[i] = Geohash.encode(lat[i], lon[i], sortBits);
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = Long.compare(hash[a], hash[b]);
+					if(c == 0) {
+						c = Double.compare(lat[a], lat[b]);
+					}
+					if(c == 0) {
+						c = Double.compare(lon[a], lon[b]);
+					}
+					if(c == 0) {
+						c = Long.compare(weight[a], weight[b]);
+					}
+					return c;
+				}
+			});
+			double[] sortedLat = new double[size], sortedLon = new double[size];
+			long[] sortedWeight = new long[size];
+			for(int i = 0; i < size; i++) {
+				sortedLat[i] = lat[order[i]];
+				sortedLon[i] = lon[order[i]];
+				sortedWeight[i] = weight[order[i]];
+			}
+			lat = sortedLat;
+			lon = sortedLon;
+			weight = sortedWeight;
+		}
+	}
+
+	/**
+	 * Finds the QueryService started by QueryServiceListener.
+	 */
+	@Override
+	public void init() throws ServletException {
+		service = (QueryService)getServletContext().getAttribute(QueryService.attribute);
+		if(service == null) {
+			throw new UnavailableException("Unable to connect to Cassandra.");
+		}
+	}
+
+	/**
+	 * Parses the request and hands it to a query thread.
+	 */
+	@Override
+	public void doGet(final HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		String start = request.getParameter("start");
+		final int time = Integer.parseInt(start != null ? start : request.getParameter("timestamp"));
+		String end = request.getParameter("end");
+		final double lat = Double.parseDouble(request.getParameter("lattitude"));
+		final double lon = Double.parseDouble(request.getParameter("longitude"));
+		final int rad = Integer.parseInt(request.getParameter("radius"));
+		final boolean density = "density".equals(request.getParameter("mode"));
+		final boolean binary = "bin".equals(request.getParameter("format"));
+		final boolean range = end != null && !end.trim().isEmpty();
+		if(rad < 1) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The radius must be at least 1 km.");
+			return;
+		}
+		final GeohashCover cover = service.plan(lat, lon, rad);
+		// Density and range maps have one point per box, so only maps of states are thinned
+		final PointSampler sampler;
+		try {
+			sampler = density || range ? null : service.newSampler(cover, request.getParameter("maxPoints"));
+		} catch(IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		final int lastHour = range ? Integer.parseInt(end.trim())/3600 : time/3600;
+		if(lastHour < time/3600 || lastHour - time/3600 >= service.getMaxRangeHours()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"A range covers 1 to "+service.getMaxRangeHours()+" hours.");
+			return;
+		}
+
+		// A map read before its hours closed may miss their last writes, so it is only final if
+		// they were closed before the lookups start
+		final boolean closed = service.isClosed(time/3600, lastHour);
+
+		service.serve(request, response, new QueryService.Task() {
+			private final Points points = new Points();
+			private QueryFanOut.Result status;
+
+			public void query() {
+				if(sampler != null) {
+					status = service.query(time, cover, false, sampler);
+					sampler.writeTo(points);
+				} else {
+					status = range ? service.queryRange(time/3600, lastHour, cover, points)
+							: service.query(time, cover, density, points);
+				}
+			}
+
+			public void respond(HttpServletResponse response) throws IOException {
+				int hour = time/3600;
+				int res = cover.getResolution();
+				boolean partial = status.isPartial() || status.failed > 0;
+				boolean sampled = sampler != null && sampler.isSampled();
+				boolean weighted = density || range || sampled;
+				double ratio = sampler != null ? sampler.getRatio() : 1;
+				response.setHeader("X-Sampling-Ratio", Double.toString(ratio));
+				points.sort();
+				byte[] body = binary ? encodeBinary(points, weighted, partial, sampled, hour, res)
+						: encodeJSON(points, weighted, partial, ratio, hour, lastHour-hour+1, res);
+				send(request, response, body, binary ? "application/octet-stream" : "application/json",
+						partial, closed);
+			}
+		});
+	}
+
+	/**
+	 * Writes a body with its caching headers, compressing it if the client accepts gzip, or
+	 * answers 304 if the client already has it.
+	 * @param closed Whether every hour of the map is closed, so it may be cached for good
+	 */
+	private void send(HttpServletRequest request, HttpServletResponse response, byte[] body,
+			String contentType, boolean partial, boolean closed) throws IOException {
+		boolean gzip = body.length >= minGzipBytes && acceptsGzip(request.getHeader("Accept-Encoding"));
+		// Each encoding is a different representation, so it needs its own strong ETag
+		String etag = "\""+digest(body)+(gzip ? "-gz" : "")+"\"";
+
+		response.setHeader("Vary", "Accept-Encoding");
+		if(partial) {
+			response.setHeader("Cache-Control", "no-store");
+		} else {
+			response.setHeader("ETag", etag);
+			if(closed) {
+				response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+			} else {
+				response.setHeader("Cache-Control", "public, max-age="+service.getOpenHourSeconds());
+			}
+			String ifNoneMatch = request.getHeader("If-None-Match");
+			if(ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		}
+
+		if(gzip) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length/4);
+			GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(body);
+			out.close();
+			body = compressed.toByteArray();
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		response.setContentType(contentType);
+		response.setContentLength(body.length);
+		OutputStream out = response.getOutputStream();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an Accept-Encoding header. gzip is accepted if it is listed with a q-value above 0,
+	 * or if it isn't listed and "*" is.
+	 * @param acceptEncoding The header, or null
+	 * @return Whether the client accepts gzip
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if(acceptEncoding == null) {
+			return false;
+		}
+		Boolean gzip = null, any = null;
+		for(String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			boolean accepted = true;
+			for(int i = 1; i < params.length; i++) {
+				String param = params[i].trim().toLowerCase();
+				if(param.startsWith("q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+					} catch(NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			if(name.equals("gzip")) {
+				gzip = accepted;
+			} else if(name.equals("*")) {
+				any = accepted;
+			}
+		}
+		return gzip != null ? gzip : any != null && any;
+	}
+
+	/**
+	 * @return The MD5 digest of a body, in hexadecimal
+	 */
+	private static String digest(byte[] body) {
+		try {
+			byte[] md5 = MessageDigest.getInstance("MD5").digest(body);
+			StringBuilder hex = new StringBuilder(2*md5.length);
+			for(byte b : md5) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM has MD5
+		}
+	}
+
+	/**
+	 * Encodes the points as JSON.
+	 */
+	private static byte[] encodeJSON(Points points, boolean weighted, boolean partial, double ratio,
+			int hour, int hours, int res) {
+		StringBuilder json = new StringBuilder(32*points.size+100);
+		json.append("{\"hour\":").append(hour).append(",\"hours\":").append(hours)
+				.append(",\"resolution\":").append(res)
+				.append(",\"weighted\":").append(weighted).append(",\"partial\":").append(partial)
+				.append(",\"sampling\":").append(ratio)
+				.append(",\"points\":[");
+		for(int i = 0; i < points.size; i++) {
+			if(i > 0) {
+				json.append(',');
+			}
+			json.append('[').append(points.lat[i]).append(',').append(points.lon[i]);
+			if(weighted) {
+				json.append(',').append(points.weight[i]);
+			}
+			json.append(']');
+		}
+		json.append("]}");
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Encodes the points as quantized, delta-encoded 32-bit integers.
+	 */
+	private static byte[] encodeBinary(Points points, boolean weighted, boolean partial, boolean sampled,
+			int hour, int res) {
+		int n = points.size;
+		ByteBuffer buf = ByteBuffer.allocate(4*(6 + (weighted ? 3 : 2)*n)).order(ByteOrder.LITTLE_ENDIAN);
+		int flags = (weighted ? 1 : 0) | (partial ? 2 : 0) | (sampled ? 4 : 0);
+		buf.putInt(version).putInt(n).putInt(flags).putInt(scale).putInt(hour).putInt(res);
+		int prev = 0;
+		for(int i = 0; i < n; i++) {
+			int q = (int)Math.round(points.lat[i]*scale);
+			buf.putInt(q-prev);
+			prev = q;
+		}
+		prev = 0;
+		for(int i = 0; i < n; i++) {
+			int q = (int)Math.round(points.lon[i]*scale);
+			buf.putInt(q-prev);
+			prev = q;
+		}
+		if(weighted) {
+			for(int i = 0; i < n; i++) {
+				buf.putInt((int)Math.min(points.weight[i], Integer.MAX_VALUE));
+			}
+		}
+		return buf.array();
+	}
+
+}
@@ -1,16 +1,10 @@
 package queryAirData;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
 
-import com.datastax.driver.core.ResultSet;
-import com.datastax.driver.core.Row;
-import com.datastax.driver.core.Session;
-
 /**
  * This is a servlet used by Tomcat7 to communicate with Cassandra and build webpages.
  * Rather than executing a main method, the doGet method is run whenever a GET request
@@ -23,15 +17,42 @@ import com.datastax.driver.core.Session;
  *   timestamp - an integer corresponding to a UNIX timestamp
  *   lattitude and longitude - doubles corresponding to GPS coordinates
  *   radius - an integer corresponding to a distance in km
+ * and may have:
+ *   mode - "points" (the default) plots every flight state. "density" plots the hourly count
+ *          of states in each geohash box, as kept by "processAirData.DensityRollup".
+ *   end - a UNIX timestamp in the last hour of a range that starts at timestamp ("start" may
+ *         be given instead of timestamp). A range is always plotted as a density map, summed
+ *         over its hours (see QueryService.queryRange).
+ *   maxPoints - the most flight states to plot, below the "points.budget" of "web.xml". Busier
+ *         maps are thinned in each geohash box (see PointSampler), and the share of states
+ *         kept is noted on the page and sent in the X-Sampling-Ratio header.
+ * 
+ * The Cassandra session, caches, and query threads are shared with GetData through the
+ * QueryService, which is configured by context-params in "web.xml". Requests are served
+ * asynchronously on its query threads.
  * 
  * @author Kevin Moss
  *
  */
 public class GetQuery extends HttpServlet {
 	
-	//IP address used to query Cassandra
-	static final String ipAddress = "ec2-52-40-31-95.us-west-2.compute.amazonaws.com";
+	private QueryService service;
+	
+	/**
+	 * Finds the QueryService started by QueryServiceListener.
+	 */
+	@Override
+	public void init() throws ServletException {
+		service = (QueryService)getServletContext().getAttribute(QueryService.attribute);
+		if(service == null) {
+			throw new UnavailableException("Unable to connect to Cassandra.");
+		}
+	}
 	
+	/**
+	 * Parses the request and hands it to a query thread. The connector thread returns
+	 * as soon as the request is queued.
+	 */
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) 
 			throws IOException, ServletException {
@@ -39,233 +60,86 @@ public class GetQuery extends HttpServlet {
 		// Set the response MIME type of the response message
 		response.setContentType("text/html");
 		
-		String timestamp = request.getParameter("timestamp");
+		String timestamp = request.getParameter("start");
+		if(timestamp == null) {
+			timestamp = request.getParameter("timestamp");
+		}
+		String end = request.getParameter("end");
 		String lattitude = request.getParameter("lattitude");
 		String longitude = request.getParameter("longitude");
 		String radius = request.getParameter("radius");
 		
-		int time = Integer.parseInt(timestamp);
-		double lat = Double.parseDouble(lattitude);
-		double lon = Double.parseDouble(longitude);
-		int rad = Integer.parseInt(radius);
+		final int time = Integer.parseInt(timestamp);
+		final double lat = Double.parseDouble(lattitude);
+		final double lon = Double.parseDouble(longitude);
+		final int rad = Integer.parseInt(radius);
+		final boolean density = "density".equals(request.getParameter("mode"));
+		final boolean range = end != null && !end.trim().isEmpty();
+		final int lastHour = range ? Integer.parseInt(end.trim())/3600 : time/3600;
+		if(lastHour < time/3600 || lastHour - time/3600 >= service.getMaxRangeHours()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"A range covers 1 to "+service.getMaxRangeHours()+" hours.");
+			return;
+		}
+		if(rad < 1) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The radius must be at least 1 km.");
+			return;
+		}
 		assert time > 0;
 		assert -90 < lat & lat < 90;
 		assert -180 < lon & lon < 180;
-		
-		
-		ArrayList<String> results = toCassandra(time, lat, lon, rad);
-		
-		// Allocate a output writer to write the response message into the network socket
-		PrintWriter out = response.getWriter();
-		try {	
-			writeHTML(out, results, lat, lon, rad);
-		} finally {
-			out.close();
-		}
-	}
-	
-	/**
-	 * Sends the query to Cassandra and gets a list of GPS coordinates in response.
-	 * @param time The UNIX timestamp
-	 * @param lat Lattitude of the center point
-	 * @param lon Longitude of the center point
-	 * @param rad Desired radius of the map
-	 * @return An ArrayList of Strings representing GPS coordinates
-	 */
-	protected static ArrayList<String> toCassandra(int time, double lat, double lon, int rad) {
-		
-		/*
-		 * Resolution determines the size of the geohash boxes that will be queried, and
-		 * radius (map size) is the factor in determining resolution.
-		 */
-		int res = getResolution(rad);
-		
-		
-		String[] geoHashes = geosNeeded(lat, lon, rad, res);
-		
-		
-	    CassandraConnector client = new CassandraConnector();
-		final int port = 9042;
-		client.connect(ipAddress, port);
-		
-		Session session = client.getSession();
-		String query = "SELECT lat, lon FROM openskyproject.openskydata WHERE"
-				+ " timeinterval=? AND geohash=?;";
-		
-		ArrayList<String> points = new ArrayList<String>();
-		for(String geo : geoHashes) {
-			ResultSet rs = session.execute(query, time/3600, geo);
-			Iterator<Row> rsIt = rs.iterator();
-			while(rsIt.hasNext()) {
-				Row row = rsIt.next();
-				double thisLat = row.getDouble(0);
-				double thisLon = row.getDouble(1);
-				points.add("["+thisLat+","+thisLon+"]");
-			}
+		final GeohashCover cover = service.plan(lat, lon, rad);
+		// Density and range maps have one point per box, so only maps of states are thinned
+		final PointSampler sampler;
+		try {
+			sampler = density || range ? null : service.newSampler(cover, request.getParameter("maxPoints"));
+		} catch(IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
 		}
 		
-		client.close();
-		return points;
-	}
-	
-	
-	/**
-	 * Constructs a geohash of GPS coordinates. This method is a duplicate of the
-	 * geohash method "processAirData.FlightState.encodeGeohash", and any changes
-	 * made to one should be made to the other as well.
-	 * 
-	 * This method is a duplicate because dependencies are undesirable for servlets.
-	 * 
-	 * @param lat Lattitude
-	 * @param lon Longitude
-	 * @param bits Number of bits to return for the geohash
-	 * @return A long representing a geohash. Best viewed as a binary string.
-	 */
-	public static long geohash(double lat, double lon, int bits) {
-		double minLat = -90,  maxLat = 90;
-		double minLng = -180, maxLng = 180;
-		long result = 0;
-		for (int i = 0; i < bits; i++) {
-			if (i % 2 == 0) {                 // even bit: bisect longitude
-				double midpoint = (minLng + maxLng) / 2;
-				if (lon < midpoint) {
-					result <<= 1;                 // push a zero bit
-					maxLng = midpoint;            // shrink range downwards
-				} else {
-					result = result << 1 | 1;     // push a one bit
-					minLng = midpoint;            // shrink range upwards
-				}
-			} else {                          // odd bit: bisect latitude
-				double midpoint = (minLat + maxLat) / 2;
-				if (lat < midpoint) {
-					result <<= 1;                 // push a zero bit
-					maxLat = midpoint;            // shrink range downwards
-				} else {
-					result = result << 1 | 1;     // push a one bit
-					minLat = midpoint;            // shrink range upwards
+		service.serve(request, response, new QueryService.Task() {
+			private QueryFanOut.Result status;
+			
+			public void query() {
+				// Unless the map is thinned, this is done in respond, so that rows are written as they arrive
+				if(sampler != null) {
+					status = service.query(time, cover, false, sampler);
 				}
 			}
-		}
-		return result;
-	}
-	
-	/**
-	 * Gets a geohash as a hexadecimal string. This method guarantees an exact number of digits,
-	 * i.e. it doesn't drop leading 0s. This is an important property for geohashes, as leading
-	 * digits are significant.
-	 * @param lat Lattitude
-	 * @param lon Longitude
-	 * @param hexDigits Number of hexadecimal digits desired.
-	 * @return A hexadecimal number in the form of a String
-	 */
-	public static String getHexGeohash(double lat, double lon, int hexDigits) {
-		String s = Long.toHexString(geohash(lat, lon, 4*hexDigits));
-		while(s.length() < hexDigits) {
-			s = "0"+s;
-		}
-		return s;
-	}
-	
-	
-	private static final int maxSteps = 20;/* Limits the number of geohash boxes to be queried.
-	At maxSteps==20, (20*2+1)^2 = 2601 boxes are queried.
-	This variable will be removed when more resolutions are supported in future implementations.*/
-	
-	/**
-	 * Calculates and constructs the set of geohash strings needed for the query.
-	 * The geohash strings are the boxes within a square centered at the desired point.
-	 * The box's size is 2*rad by 2*rad
-	 * 
-	 * @param lat Lattitude of center point
-	 * @param lon Longitude of center point
-	 * @param rad Distance from the center to the middle of one side of the box.
-	 * @param res "Resolution" i.e. number of hexadecimal digits for the geohash boxes
-	 * @return
-	 */
-	public static String[] geosNeeded(double lat, double lon, int rad, int res) {
-		/* First we would determine the dimensions of a geohash box and use them to determine the
-		 * number of boxes to we should query. Currently the number of geohash boxes we query is
-		 * fixed for the purpose of consistent latency. */
-		
-		//Number of geohash boxes queried is typically equal to (2*latSteps+1)(2*lonSteps+1)
-		int latSteps = maxSteps;
-		int lonSteps = maxSteps;
-		
-		/* For simplicity, there is currently wraparound at the north and south poles.
-		 * The OpenSky Network doesn't cover the poles, so the issue is currently unimportant.
-		 * Overlap caused by wraparound is not an issue with the currently supported resolution
-		 * levels, but it should be addressed in future development.*/
-		
-		//In this step, we split the center geohash into its horizontal vertical parts
-		long geoCenter = geohash(lat,lon,4*res);
-		String fullHash = Long.toBinaryString(geoCenter);
-		while(fullHash.length() < 4*res) {
-			fullHash = "0"+fullHash;
-		}
-		
-		String latHash = "";
-		String lonHash = "";
-		for(int i = 0; i < fullHash.length(); i+=2) {
-			lonHash += fullHash.charAt(i);
-		}
-		for(int i = 1; i < fullHash.length(); i+=2) {
-			latHash += fullHash.charAt(i);
-		}
-		long binaryLat = Long.parseLong(latHash,2);
-		long binaryLon = Long.parseLong(lonHash,2);
-		
-		
-		//Finally, construct the geohash list 
-		int mod = (int)Math.pow(2, 2*res);
-		
-		ArrayList<String> geos = new ArrayList<String>();
-		
-		for(int i = -latSteps; i <= latSteps; i++) {
-			for(int j = -lonSteps; j <= lonSteps; j++) {
-				long thisLat = (binaryLat + mod + i)%mod;
-				long thisLon = (binaryLon + mod + j)%mod;
-				String thisLatString = Long.toBinaryString(thisLat);
-				while(thisLatString.length() < 2*res) {
-					thisLatString = "0"+thisLatString;
-				}
-				String thisLonString = Long.toBinaryString(thisLon);
-				while(thisLonString.length() < 2*res) {
-					thisLonString = "0"+thisLonString;
+			
+			public void respond(HttpServletResponse response) throws IOException {
+				if(sampler != null) {
+					response.setHeader("X-Sampling-Ratio", Double.toString(sampler.getRatio()));
 				}
-				String together = "";
-				for(int k = 0; k < res*2; k++) {
-					together += ""+thisLonString.charAt(k)
-							+ thisLatString.charAt(k);//
+				// Allocate a output writer to write the response message into the network socket
+				PrintWriter out = response.getWriter();
+				try {
+					writeHead(out);
+					PointWriter points = new PointWriter(out);
+					if(sampler != null) {
+						sampler.writeTo(points);
+					} else {
+						status = range
+								? service.queryRange(time/3600, lastHour, cover, points)
+								: service.query(time, cover, density, points);
+					}
+					points.flush();
+					writeTail(out, points.getCount(), status, sampler, lat, lon, cover.getResolution());
+				} finally {
+					out.close();
 				}
-				String thisHex = Long.toHexString(Long.parseLong(together,2));
-				geos.add(thisHex);
 			}
-		}
-		return geos.toArray(new String[geos.size()]);
+		});
 	}
 	
 	
-	
 	/**
-	 * Writes an HTML page. In particular, the page is a Leaflet heatmap that plots the given points,
-	 * is centered at the specified lattitude and longitude, and has size determined by the radius.
+	 * Writes the start of an HTML page, up to the opening of the array of points. The page is a
+	 * Leaflet heatmap; the points follow as they arrive (see PointWriter), then writeTail.
 	 * @param out A PrintWriter that is meant to write the HTML page.
-	 * @param points An ArrayList of Strings, each of which should be a gps location in the form "[lat, lon]"
-	 * @param lat Latitude of map center
-	 * @param lon Longitude of map center
-	 * @param rad "Radius" of the desired map, i.e. distance from center to midpoint of each side of square.
 	 */
-	private static void writeHTML(PrintWriter out, ArrayList<String> points,
-			double lat, double lon, int rad) {
-		
-		int res = getResolution(rad);
-		/* Currently, the magnification (zoomLevel) of the map is that which best
-		 * fits the resolution. In future implementations, it will support a more
-		 * dynamic radius */
-		int zoomLevel = 2*res - 3;
-		zoomLevel = (zoomLevel >= 0) ? zoomLevel : 0;//TODO use this
-		
-		
+	private static void writeHead(PrintWriter out) {
 		out.println("<html>");
 		out.println("<head>");
 		out.println("    <title>Air-Traffic Heat Map</title>");
@@ -288,13 +162,30 @@ public class GetQuery extends HttpServlet {
 		
 		out.println("<script>");
 		out.println("var addressPoints = [");
-		for(int i = 0; i < points.size()-1; i++) {
-			out.print(points.get(i)+",");
-			if(i%10==9) {
-				out.println();
-			}
-		}
-		out.println(points.get(points.size()-1)+"];");
+	}
+	
+	/**
+	 * Writes the rest of the page, once every point has been written. In particular, the map is
+	 * centered at the specified lattitude and longitude, and zoomed to fit the boxes it was built from.
+	 * @param out A PrintWriter that is meant to write the HTML page.
+	 * @param count The number of points written. An empty map is noted on the page.
+	 * @param status Outcome of the Cassandra lookups. Partial results are noted on the page.
+	 * @param sampler The sampler that thinned the points, or null. Thinning is noted on the page.
+	 * @param lat Latitude of map center
+	 * @param lon Longitude of map center
+	 * @param res Resolution of the boxes the map was built from (see GeohashCover.getResolution).
+	 * A map that fell back to coarser boxes opens zoomed out to fit them.
+	 */
+	private static void writeTail(PrintWriter out, long count, QueryFanOut.Result status,
+			PointSampler sampler, double lat, double lon, int res) {
+		
+		/* Currently, the magnification (zoomLevel) of the map is that which best
+		 * fits the resolution. In future implementations, it will support a more
+		 * dynamic radius */
+		int zoomLevel = 2*res - 3;
+		zoomLevel = (zoomLevel >= 0) ? zoomLevel : 0;//TODO use this
+		
+		out.println("];");
 		out.println();
 		
 		out.println("var map = L.map('map').setView(["+lat+", "+lon+"], "+zoomLevel+");");
@@ -302,36 +193,27 @@ public class GetQuery extends HttpServlet {
 		out.println("    attribution: '&copy; <a href=\"http://osm.org/copyright\">"
 				+ "OpenStreetMap</a> contributors',");
 		out.println("}).addTo(map);");
-		out.println("addressPoints = addressPoints.map(function (p) { return [p[0], p[1]]; });");
-		out.println("var heat = L.heatLayer(addressPoints, {blur:8, radius:5, maxZoom:5}).addTo(map);");
+		// Weighted points are scaled so that the heaviest one is at full intensity
+		out.println("var maxWeight = addressPoints.reduce(function (m, p) {"
+				+ " return Math.max(m, p.length > 2 ? p[2] : 1); }, 1);");
+		out.println("var heat = L.heatLayer(addressPoints, {blur:8, radius:5, maxZoom:5, max:maxWeight})"
+				+ ".addTo(map);");
 
 		out.println("</script>");
+		// The outcome is only known once the points have been sent, so it goes below the map
+		if(status.isPartial() || status.failed > 0) {
+			out.println("<p>Partial results: "+status.describe()+".</p>");
+		}
+		if(sampler != null && sampler.isSampled()) {
+			out.println("<p>Showing "+sampler.getKept()+" of "+sampler.getSeen()+" flight states (about 1 in "
+					+Math.round(1/sampler.getRatio())+"), sampled in each box and weighted to keep the density.</p>");
+		}
+		if(count == 0) {
+			out.println("<p>No flights were found here at this time.</p>");
+		}
 		out.println("</body>");
 		out.println("</html>");
 	}
 	
-	/**
-	 * Gets the most appropriate resolution of the map for the given radius.
-	 * Resolution is the number of hexadecimal digits used in geohashes.
-	 * Currently only resolutions 4, 5, 6, and 7 are supported.
-	 * 
-	 * @param rad an integer
-	 * @return an integer
-	 */
-	private static int getResolution(int rad) {
-		int res;
-		if(rad >= 625) { 
-			res = 4;
-		} else if (rad >= 156) { 
-			res = 5;
-		} else if (rad >= 39) { 
-			res = 6;
-		} else { 
-			res = 7;
-		}
-		return res;
-	}
-	
 	
 }
-
@@ -0,0 +1,116 @@
+package queryAirData;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+
+/**
+ * Knows which hours have been fully ingested, and so can no longer change. Maps, boxes, and
+ * occupied boxes of those hours are cached for good; every other hour is treated as still
+ * filling in, and is reloaded after a short time.
+ *
+ * When an ingest run finishes (see "processAirData.IngestPipeline.finish"), it marks each past
+ * hour it sent states for. "processAirData.IngestMarker" waits until the Cassandra sink and the
+ * density rollup have consumed everything up to the mark, and only then closes the hour in:
+ *
+ *   CREATE TABLE openskyproject.ingestedhours (
+ *     timeinterval int PRIMARY KEY, completed bigint);
+ *
+ * where completed is when the hour was closed, in UNIX milliseconds. Every hour with a row is
+ * closed, however long the consumers took to get there.
+ *
+ * The table has one small row per hour, so it is read whole, in the background, every
+ * refreshMillis, and isClosed never waits on Cassandra. Until the first read, every hour is
+ * open. Hours ingested before marks were written stay open until a row is inserted for them.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class IngestWatermark {
+
+	private static final String markQuery = "SELECT timeinterval, completed FROM openskyproject.ingestedhours;";
+
+	private final Session session;
+	private final ServletContext context;
+	private final ScheduledExecutorService refresher;
+	// When each closed hour was closed. Replaced whole by each refresh.
+	private volatile Map<Integer, Long> marks = Collections.emptyMap();
+
+	/**
+	 * Starts reading the marks in the background.
+	 * @param session A connected session. The watermark doesn't close it.
+	 * @param context The servlet context, whose log receives failed reads
+	 * @param refreshMillis How often to read the marks
+	 */
+	public IngestWatermark(Session session, ServletContext context, long refreshMillis) {
+		this.session = session;
+		this.context = context;
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "heatout-watermark");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, 0, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads every mark. A failed read keeps the marks read before it.
+	 */
+	private void refresh() {
+		try {
+			HashMap<Integer, Long> read = new HashMap<Integer, Long>();
+			for(Row row : session.execute(new SimpleStatement(markQuery).setFetchSize(5000))) {
+				read.put(row.getInt(0), row.getLong(1));
+			}
+			marks = read;
+		} catch(RuntimeException e) {
+			context.log("Could not read the ingested hours: "+e);
+		}
+	}
+
+	/**
+	 * @param hour An hour (UNIX time / 3600)
+	 * @return Whether the hour has been fully ingested, so its maps never change
+	 */
+	public boolean isClosed(int hour) {
+		return marks.containsKey(hour);
+	}
+
+	/**
+	 * @param firstHour The first hour of a range
+	 * @param lastHour The last hour, inclusive
+	 * @return Whether every hour of the range is closed
+	 */
+	public boolean isClosed(int firstHour, int lastHour) {
+		for(int hour = firstHour; hour <= lastHour; hour++) {
+			if(!isClosed(hour)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops reading the marks.
+	 */
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+}
@@ -0,0 +1,291 @@
+package queryAirData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+
+import geoAirData.CellLayout;
+
+/**
+ * Remembers which geohash boxes have any flight states in an hour, so that empty boxes
+ * aren't queried. Ingestion announces each occupied full-resolution box once per hour, and the
+ * Cassandra sink stores the announcements in:
+ *
+ *   CREATE TABLE openskyproject.occupiedcells (
+ *     timeinterval int, prefix int, geohash int,
+ *     PRIMARY KEY ((timeinterval, prefix), geohash));
+ *
+ * where prefix is the box's partition in "geoAirData.CellLayout", as for the states. A map only
+ * reads the partitions its boxes fall in, so a partition holds at most 4096 boxes however busy
+ * the hour is. The partitions are read through the QueryFanOut, within the map's time limit;
+ * boxes of partitions that weren't read in time are queried as if occupied.
+ *
+ * A coarser box is occupied if any full-resolution box inside it is, which is a binary search
+ * in the sorted boxes of its partition. At CellLayout.partitionResolution a box is a whole
+ * partition, so reading its occupancy would cost as many queries as reading its states, and
+ * boxes are never skipped. hasStates can still tell whether such boxes are all empty, from the
+ * first row of each partition.
+ *
+ * Hours that have been fully ingested never change (see IngestWatermark), so their partitions
+ * are kept until they are the least recently used and the cache is over its size, as in
+ * CellCache. Any other hour may still be filling in, and its partitions are reloaded after a
+ * short time. An empty partition of such an hour tells nothing (it may have been ingested
+ * before occupancy was tracked, or not be announced yet), and none of its boxes are skipped.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class OccupancyCache {
+
+	private static final String occupancyQuery = "SELECT geohash FROM openskyproject.occupiedcells WHERE"
+			+ " timeinterval=? AND prefix=?;";
+	private static final String probeQuery = "SELECT geohash FROM openskyproject.occupiedcells WHERE"
+			+ " timeinterval=? AND prefix=? LIMIT 1;";
+
+	// Estimated memory of an entry besides its boxes: key, entry, and array objects
+	private static final int entryOverhead = 96;
+
+	/**
+	 * The occupied boxes of one (hour, partition).
+	 */
+	private static class Partition {
+		// Sorted full-resolution geohashes, or null if only whether there are any was read
+		final int[] cells;
+		final boolean occupied;
+		final long loaded;
+		// Whether the hour was already closed when the partition was read, so it is final
+		final boolean closed;
+
+		Partition(int[] cells, boolean occupied, long loaded, boolean closed) {
+			this.cells = cells;
+			this.occupied = occupied;
+			this.loaded = loaded;
+			this.closed = closed;
+		}
+
+		/**
+		 * @return Whether the partition may have states in [first, end), as far as it is known
+		 */
+		boolean mayHave(long first, long end) {
+			if(!occupied) {
+				return !closed;
+			}
+			if(cells == null) {
+				return true;
+			}
+			int i = Arrays.binarySearch(cells, (int)first);
+			if(i < 0) {
+				i = -i-1;
+			}
+			return i < cells.length && cells[i] < end;
+		}
+
+		long bytes() {
+			return (cells == null ? 0 : 4L*cells.length)+entryOverhead;
+		}
+	}
+
+	private final PreparedStatement statement;
+	private final PreparedStatement probe;
+	private final QueryFanOut fanOut;
+	private final IngestWatermark watermark;
+	private final long maxBytes;
+	private final long openHourMillis;
+	private final LinkedHashMap<Long, Partition> partitions = new LinkedHashMap<Long, Partition>(1024, 0.75f, true);
+	private long bytes;
+
+	/**
+	 * @param session A connected session
+	 * @param fanOut Reads the partitions
+	 * @param watermark Tells which hours are closed
+	 * @param maxBytes Most memory the cached boxes may take, approximately
+	 * @param openHourMillis How long partitions of a still-filling hour may be used before they
+	 * are reloaded
+	 */
+	public OccupancyCache(Session session, QueryFanOut fanOut, IngestWatermark watermark, long maxBytes,
+			long openHourMillis) {
+		this.statement = session.prepare(occupancyQuery);
+		this.probe = session.prepare(probeQuery);
+		this.fanOut = fanOut;
+		this.watermark = watermark;
+		this.maxBytes = maxBytes;
+		this.openHourMillis = openHourMillis;
+	}
+
+	private static Long key(int hour, int prefix) {
+		return (long)hour << 32 | prefix;
+	}
+
+	/**
+	 * Drops the boxes that have no states in the given hour.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param res Number of hexadecimal digits in the geohashes
+	 * @param cells Geohashes of boxes, 4*res bits each
+	 * @param timeoutMillis Time allowed for reading partitions that aren't cached
+	 * @return The boxes that are, or may be, occupied, in their original order
+	 */
+	public long[] occupied(int hour, int res, long[] cells, long timeoutMillis) {
+		if(res <= CellLayout.partitionResolution) {
+			return cells;
+		}
+		HashMap<Integer, Partition> found = lookup(hour, partitionsOf(cells, res), true, timeoutMillis);
+		long[] kept = new long[cells.length];
+		int n = 0;
+		for(long cell : cells) {
+			if(mayHave(found, cell, res)) {
+				kept[n++] = cell;
+			}
+		}
+		return Arrays.copyOf(kept, n);
+	}
+
+	/**
+	 * Tells whether any of the boxes may have states in the given hour, for instance to decide
+	 * whether an hour without density rollups is worth reading states for.
+	 * @param hour The hour (UNIX time / 3600)
+	 * @param res Number of hexadecimal digits in the geohashes
+	 * @param cells Geohashes of boxes, 4*res bits each
+	 * @param timeoutMillis Time allowed for reading partitions that aren't cached
+	 * @return False only if every box is known to be empty
+	 */
+	public boolean hasStates(int hour, int res, long[] cells, long timeoutMillis) {
+		boolean withCells = res > CellLayout.partitionResolution;
+		HashMap<Integer, Partition> found = lookup(hour, partitionsOf(cells, res), withCells, timeoutMillis);
+		for(long cell : cells) {
+			if(mayHave(found, cell, res)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param found Partitions from lookup
+	 * @return Whether the box may have states
+	 */
+	private static boolean mayHave(HashMap<Integer, Partition> found, long cell, int res) {
+		long first = CellLayout.firstOf(cell, res), end = CellLayout.endOf(cell, res);
+		for(int prefix = CellLayout.partitionOf(first); prefix <= CellLayout.partitionOf(end-1); prefix++) {
+			Partition p = found.get(prefix);
+			if(p == null || p.mayHave(first, end)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The sorted partitions the boxes fall in, without repeats
+	 */
+	private static int[] partitionsOf(long[] cells, int res) {
+		int[] prefixes = new int[cells.length];
+		int n = 0;
+		for(long cell : cells) {
+			int first = CellLayout.partitionOf(CellLayout.firstOf(cell, res));
+			int last = CellLayout.partitionOf(CellLayout.endOf(cell, res)-1);
+			for(int prefix = first; prefix <= last; prefix++) {
+				if(n == prefixes.length) {
+					prefixes = Arrays.copyOf(prefixes, 2*n);
+				}
+				prefixes[n++] = prefix;
+			}
+		}
+		prefixes = Arrays.copyOf(prefixes, n);
+		Arrays.sort(prefixes);
+		int distinct = 0;
+		for(int prefix : prefixes) {
+			if(distinct == 0 || prefixes[distinct-1] != prefix) {
+				prefixes[distinct++] = prefix;
+			}
+		}
+		return Arrays.copyOf(prefixes, distinct);
+	}
+
+	/**
+	 * Gets partitions from the cache, reading the ones that aren't cached or are stale.
+	 * @param prefixes The partitions wanted
+	 * @param withCells Whether the occupied boxes are needed, or only whether there are any
+	 * @return The partitions by number, leaving out those that couldn't be read in time
+	 */
+	private HashMap<Integer, Partition> lookup(final int hour, int[] prefixes, boolean withCells, long timeoutMillis) {
+		HashMap<Integer, Partition> found = new HashMap<Integer, Partition>();
+		long now = System.currentTimeMillis();
+		final List<Integer> missing = new ArrayList<Integer>();
+		synchronized(partitions) {
+			for(int prefix : prefixes) {
+				Partition p = partitions.get(key(hour, prefix));
+				if(p != null && (p.closed || now - p.loaded < openHourMillis)
+						&& (p.cells != null || !p.occupied || !withCells)) {
+					found.put(prefix, p);
+				} else {
+					missing.add(prefix);
+				}
+			}
+		}
+		if(missing.isEmpty()) {
+			return found;
+		}
+
+		// A partition read before its hour closed may miss the last announcements, so it is
+		// only final if the hour was closed before the reads start
+		boolean closed = watermark.isClosed(hour);
+		// Concurrent misses may both read a partition; they read the same rows.
+		List<BoundStatement> reads = new ArrayList<BoundStatement>(missing.size());
+		for(int prefix : missing) {
+			reads.add((withCells ? statement : probe).bind(hour, prefix));
+		}
+		final int[][] rows = new int[missing.size()][];
+		final int[] counts = new int[missing.size()];
+		QueryFanOut.Result status = fanOut.execute(reads, new QueryFanOut.RowHandler() {
+			public void handle(int statement, Row row) {
+				int[] cells = rows[statement];
+				if(cells == null) {
+					cells = rows[statement] = new int[16];
+				} else if(counts[statement] == cells.length) {
+					cells = rows[statement] = Arrays.copyOf(cells, 2*cells.length);
+				}
+				cells[counts[statement]++] = row.getInt(0);
+			}
+		}, timeoutMillis);
+
+		// Only partitions whose every row arrived are known
+		for(int i = status.finished.nextSetBit(0); i >= 0; i = status.finished.nextSetBit(i+1)) {
+			int[] cells = null;
+			if(withCells) {
+				cells = rows[i] == null ? new int[0] : Arrays.copyOf(rows[i], counts[i]);
+				Arrays.sort(cells);
+			}
+			Partition p = new Partition(cells, counts[i] > 0, now, closed);
+			found.put(missing.get(i), p);
+			put(key(hour, missing.get(i)), p);
+		}
+		return found;
+	}
+
+	/**
+	 * Caches a partition, evicting the least recently used partitions if the cache is full.
+	 */
+	private void put(Long key, Partition p) {
+		if(p.bytes() > maxBytes) {
+			return;
+		}
+		synchronized(partitions) {
+			Partition old = partitions.put(key, p);
+			bytes += p.bytes() - (old == null ? 0 : old.bytes());
+			Iterator<Partition> eldest = partitions.values().iterator();
+			while(bytes > maxBytes) {
+				bytes -= eldest.next().bytes();
+				eldest.remove();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package queryAirData;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import geoAirData.Geohash;
+
+/**
+ * Thins the points of a map down to a budget, keeping its density.
+ *
+ * Points are sampled separately in each geohash box. Every box may keep up to the same number
+ * of points, and that number is halved whenever the boxes keep more than the budget in all.
+ * Sparse boxes therefore keep all of their points, and only busy boxes are thinned.
+ *
+ * A box keeps the points with the lowest priorities, where a point's priority is a hash of its
+ * position. The hash stands in for a random number, so the kept points are a uniform sample of
+ * the box, but which points are kept depends only on the points, not on the order they arrive
+ * in. Lookups merge their rows in whatever order Cassandra answers, and the cell cache in
+ * another, yet the same map is always thinned to the same points.
+ *
+ * Each kept point stands for the points of its box that were dropped: its weight is its share
+ * of the box's count, so the weights of a box add up to its count and the heat map looks the
+ * same. If the budget is never reached, every point is passed on unweighted.
+ *
+ * Memory doesn't grow with the number of points in the map: it holds at most the budget's
+ * points, plus one small reservoir for each box of the cover, of which there are at most
+ * cover.maxCells (see GeohashCover). The budget should be larger than the number of boxes in a
+ * map, since every box keeps at least one point.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class PointSampler implements QueryService.PointSink {
+
+	/**
+	 * The kept points of one box, as a max-heap by priority, so that the point to drop next is
+	 * at the top.
+	 */
+	private static class Reservoir {
+		long seen;
+		int kept;
+		long[] priority = new long[4];
+		double[] lat = new double[4], lon = new double[4];
+
+		/**
+		 * @return Whether point i should be dropped before a point with the given values
+		 */
+		boolean after(int i, long p, double thisLat, double thisLon) {
+			int c = Long.compare(priority[i], p);
+			if(c == 0) {
+				c = Double.compare(lat[i], thisLat);
+			}
+			if(c == 0) {
+				c = Double.compare(lon[i], thisLon);
+			}
+			return c > 0;
+		}
+
+		void set(int i, long p, double thisLat, double thisLon) {
+			priority[i] = p;
+			lat[i] = thisLat;
+			lon[i] = thisLon;
+		}
+
+		/**
+		 * Adds a point, with room for it.
+		 */
+		void push(long p, double thisLat, double thisLon) {
+			int i = kept++;
+			while(i > 0 && !after((i-1)/2, p, thisLat, thisLon)) {
+				int parent = (i-1)/2;
+				set(i, priority[parent], lat[parent], lon[parent]);
+				i = parent;
+			}
+			set(i, p, thisLat, thisLon);
+		}
+
+		/**
+		 * Puts a point in place of the top one, which it comes before.
+		 */
+		void replaceTop(long p, double thisLat, double thisLon) {
+			int i = 0;
+			for(;;) {
+				int child = 2*i+1;
+				if(child >= kept) {
+					break;
+				}
+				if(child+1 < kept && after(child+1, priority[child], lat[child], lon[child])) {
+					child++;
+				}
+				if(!after(child, p, thisLat, thisLon)) {
+					break;
+				}
+				set(i, priority[child], lat[child], lon[child]);
+				i = child;
+			}
+			set(i, p, thisLat, thisLon);
+		}
+
+		/**
+		 * Drops the top point.
+		 */
+		void pop() {
+			kept--;
+			if(kept > 0) {
+				replaceTop(priority[kept], lat[kept], lon[kept]);
+			}
+		}
+	}
+
+	private final int budget;
+	private final int bits;
+	private final HashMap<Long, Reservoir> boxes = new HashMap<Long, Reservoir>();
+	// Most points a box may keep
+	private int perBox;
+	private long seen, kept;
+
+	/**
+	 * @param budget Most points to pass on
+	 * @param res Number of hexadecimal digits in the geohashes of the boxes
+	 */
+	public PointSampler(int budget, int res) {
+		if(budget < 1) {
+			throw new IllegalArgumentException("The point budget must be positive.");
+		}
+		this.budget = budget;
+		this.bits = 4*res;
+		this.perBox = budget;
+	}
+
+	/**
+	 * @return A well-mixed hash of a position (the finalizer of MurmurHash3)
+	 */
+	private static long priority(double lat, double lon) {
+		long h = Double.doubleToLongBits(lat)*0x9e3779b97f4a7c15L + Double.doubleToLongBits(lon);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public void add(double lat, double lon, long weight) {
+		seen++;
+		long cell = Geohash.encode(lat, lon, bits);
+		Reservoir r = boxes.get(cell);
+		if(r == null) {
+			r = new Reservoir();
+			boxes.put(cell, r);
+		}
+		r.seen++;
+		long p = priority(lat, lon);
+		if(r.kept < perBox) {
+			if(r.kept == r.lat.length) {
+				int n = Math.min(2*r.kept, perBox);
+				r.priority = Arrays.copyOf(r.priority, n);
+				r.lat = Arrays.copyOf(r.lat, n);
+				r.lon = Arrays.copyOf(r.lon, n);
+			}
+			r.push(p, lat, lon);
+			kept++;
+			if(kept > budget && perBox > 1) {
+				shrink();
+			}
+		} else if(r.after(0, p, lat, lon)) {
+			r.replaceTop(p, lat, lon);
+		}
+	}
+
+	/**
+	 * Halves the points each box may keep until the budget is met, dropping the points with the
+	 * highest priorities. The lowest priorities of a uniform sample are still a uniform sample.
+	 */
+	private void shrink() {
+		while(kept > budget && perBox > 1) {
+			perBox /= 2;
+			for(Reservoir r : boxes.values()) {
+				if(r.kept > perBox) {
+					kept -= r.kept - perBox;
+					while(r.kept > perBox) {
+						r.pop();
+					}
+					r.priority = Arrays.copyOf(r.priority, perBox);
+					r.lat = Arrays.copyOf(r.lat, perBox);
+					r.lon = Arrays.copyOf(r.lon, perBox);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Whether any points were dropped
+	 */
+	public boolean isSampled() {
+		return kept < seen;
+	}
+
+	/**
+	 * @return The number of points received
+	 */
+	public long getSeen() {
+		return seen;
+	}
+
+	/**
+	 * @return The number of points kept
+	 */
+	public long getKept() {
+		return kept;
+	}
+
+	/**
+	 * @return The fraction of the points that were kept, 1 if none were dropped
+	 */
+	public double getRatio() {
+		return seen == 0 ? 1 : (double)kept/seen;
+	}
+
+	/**
+	 * Passes the kept points on, box by box in geohash order, and by priority within a box. If
+	 * points were dropped, each is weighted so that the weights of a box add up to the number of
+	 * points it received.
+	 * @param sink Receives the points
+	 */
+	public void writeTo(QueryService.PointSink sink) {
+		boolean sampled = isSampled();
+		long[] keys = new long[boxes.size()];
+		int n = 0;
+		for(Long cell : boxes.keySet()) {
+			keys[n++] = cell;
+		}
+		Arrays.sort(keys);
+		for(long cell : keys) {
+			final Reservoir r = boxes.get(cell);
+			Integer[] order = new Integer[r.kept];
+			for(int i = 0; i < r.kept; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if(r.after(a, r.priority[b], r.lat[b], r.lon[b])) {
+						return 1;
+					}
+					return r.after(b, r.priority[a], r.lat[a], r.lon[a]) ? -1 : 0;
+				}
+			});
+			// The box's count, split as evenly as whole numbers allow
+			long share = r.seen/r.kept, extra = r.seen%r.kept;
+			for(int i = 0; i < r.kept; i++) {
+				int j = order[i];
+				sink.add(r.lat[j], r.lon[j], sampled ? share + (i < extra ? 1 : 0) : -1);
+			}
+		}
+	}
+
+}
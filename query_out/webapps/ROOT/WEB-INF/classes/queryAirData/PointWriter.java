@@ -0,0 +1,117 @@
+package queryAirData;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes points to a page as a JavaScript array body, "[lat,lon],[lat,lon,weight],...", as
+ * they arrive from Cassandra, instead of collecting them first.
+ *
+ * Numbers are formatted into one reusable buffer, without making a String per point, and the
+ * buffer is written and flushed whenever it fills, so the page reaches the browser in chunks
+ * while the lookups are still running. Memory per request stays the same however many points
+ * there are.
+ *
+ * Coordinates are written with at most 6 decimals (about 10 cm), without trailing zeros.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class PointWriter implements QueryService.PointSink {
+
+	private static final int bufferSize = 16*1024;
+	// Longest text of one point: three numbers with signs and separators
+	private static final int maxPointChars = 80;
+	private static final long fractionScale = 1000000;
+	private static final int fractionDigits = 6;
+	private static final int pointsPerLine = 10;
+
+	private final PrintWriter out;
+	private final char[] buf = new char[bufferSize];
+	private int n;
+	private long count;
+
+	/**
+	 * @param out The page being written
+	 */
+	public PointWriter(PrintWriter out) {
+		this.out = out;
+	}
+
+	@Override
+	public void add(double lat, double lon, long weight) {
+		if(n + maxPointChars > buf.length) {
+			flush();
+		}
+		if(count > 0) {
+			buf[n++] = ',';
+			if(count % pointsPerLine == 0) {
+				buf[n++] = '\n';
+			}
+		}
+		buf[n++] = '[';
+		number(lat);
+		buf[n++] = ',';
+		number(lon);
+		if(weight >= 0) {
+			buf[n++] = ',';
+			digits(weight);
+		}
+		buf[n++] = ']';
+		count++;
+	}
+
+	/**
+	 * @return The number of points written
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the buffered text to the page and sends it to the browser.
+	 */
+	public void flush() {
+		out.write(buf, 0, n);
+		out.flush();
+		n = 0;
+	}
+
+	private void number(double x) {
+		long scaled = Math.round(Math.abs(x)*fractionScale);
+		if(x < 0 && scaled != 0) {
+			buf[n++] = '-';
+		}
+		digits(scaled/fractionScale);
+		long fraction = scaled%fractionScale;
+		if(fraction != 0) {
+			buf[n++] = '.';
+			int digits = fractionDigits;
+			while(fraction%10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			for(int i = n+digits-1; i >= n; i--) {
+				buf[i] = (char)('0' + fraction%10);
+				fraction /= 10;
+			}
+			n += digits;
+		}
+	}
+
+	/**
+	 * Writes a non-negative integer.
+	 */
+	private void digits(long v) {
+		int start = n;
+		do {
+			buf[n++] = (char)('0' + v%10);
+			v /= 10;
+		} while(v > 0);
+		for(int i = start, j = n-1; i < j; i++, j--) {
+			char c = buf[i];
+			buf[i] = buf[j];
+			buf[j] = c;
+		}
+	}
+
+}
@@ -0,0 +1,277 @@
+package queryAirData;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Issues many small Cassandra queries asynchronously and merges their rows as they arrive.
+ *
+ * A map view needs one lookup per geohash box. Rather than waiting on each round-trip in turn,
+ * the fan-out keeps several queries in flight at once. Two limits keep it from swamping the
+ * cluster:
+ *   maxInFlightPerRequest - queries a single call to execute() may have outstanding
+ *   maxInFlightPerNode - queries outstanding against one replica, summed over every request
+ *
+ * Rows are handed to the RowHandler on the thread that called execute(), so handlers don't
+ * need to be thread-safe. If the deadline passes first, execute() returns whatever has been
+ * merged so far and marks the result as partial. The queries still outstanding are cancelled,
+ * so they don't go on holding connections and node permits for a request that has moved on.
+ * Failed queries are logged to the servlet context.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class QueryFanOut {
+
+	/**
+	 * Receives rows from the fan-out.
+	 */
+	public interface RowHandler {
+		/**
+		 * @param statement Index of the statement that produced the row
+		 * @param row A row of the statement's result
+		 */
+		void handle(int statement, Row row);
+	}
+
+	/**
+	 * Summary of a fan-out.
+	 */
+	public static class Result {
+		public int statements, completed, failed;
+		public boolean partial;
+		// The indexes of the statements whose every row was handled
+		public final BitSet finished = new BitSet();
+
+		public boolean isPartial() {
+			return partial;
+		}
+		public String describe() {
+			return completed+" of "+statements+" queries completed, "+failed+" failed"
+					+(partial ? " (deadline reached)" : "");
+		}
+	}
+
+	// Runs future listeners on the driver thread that completed the future. They only enqueue.
+	private static final Executor sameThread = new Executor() {
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	private final Session session;
+	private final ServletContext context;
+	private final int maxInFlightPerRequest;
+	private final int maxInFlightPerNode;
+	private final ConcurrentHashMap<Host, Semaphore> nodePermits = new ConcurrentHashMap<Host, Semaphore>();
+	private final Semaphore unroutedPermits;
+
+	/**
+	 * @param session A connected session. The fan-out doesn't close it.
+	 * @param context The servlet context, whose log receives failed queries
+	 * @param maxInFlightPerRequest Outstanding queries allowed for one call to execute()
+	 * @param maxInFlightPerNode Outstanding queries allowed against a single replica
+	 */
+	public QueryFanOut(Session session, ServletContext context, int maxInFlightPerRequest, int maxInFlightPerNode) {
+		if(maxInFlightPerRequest < 1 || maxInFlightPerNode < 1) {
+			throw new IllegalArgumentException("In-flight limits must be positive.");
+		}
+		this.session = session;
+		this.context = context;
+		this.maxInFlightPerRequest = maxInFlightPerRequest;
+		this.maxInFlightPerNode = maxInFlightPerNode;
+		this.unroutedPermits = new Semaphore(maxInFlightPerNode);
+	}
+
+	/**
+	 * A page of results (or a failure) for one statement, queued by the driver's callback.
+	 */
+	private static class Completion {
+		final int statement;
+		final ListenableFuture<ResultSet> future;
+
+		Completion(int statement, ListenableFuture<ResultSet> future) {
+			this.statement = statement;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * A statement waiting to be sent: either a new query or the next page of one.
+	 */
+	private static class Pending {
+		final int statement;
+		final Statement query;
+		final ResultSet paged;
+
+		Pending(int statement, Statement query, ResultSet paged) {
+			this.statement = statement;
+			this.query = query;
+			this.paged = paged;
+		}
+	}
+
+	/**
+	 * Executes every statement and merges the rows through the handler.
+	 * @param statements Queries to run. Their order is the order they're dispatched in.
+	 * @param handler Receives every row, on the calling thread
+	 * @param timeoutMillis Time allowed for the whole fan-out
+	 * @return A summary, including whether the deadline cut it short
+	 */
+	public Result execute(List<? extends Statement> statements, RowHandler handler, long timeoutMillis) {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final LinkedBlockingQueue<Completion> done = new LinkedBlockingQueue<Completion>();
+
+		// Next pages are dispatched before new statements so that started queries finish first
+		ArrayDeque<Pending> pages = new ArrayDeque<Pending>();
+		int next = 0, inFlight = 0;
+		// Queries sent whose completion hasn't been taken from the queue yet
+		Set<ListenableFuture<ResultSet>> outstanding = new HashSet<ListenableFuture<ResultSet>>();
+
+		Result result = new Result();
+		result.statements = statements.size();
+
+		try {
+			while(next < statements.size() || !pages.isEmpty() || inFlight > 0) {
+				//Dispatch as much as the limits allow
+				while(inFlight < maxInFlightPerRequest && (!pages.isEmpty() || next < statements.size())) {
+					Pending p = pages.isEmpty()
+							? new Pending(next, statements.get(next), null) : pages.peekFirst();
+					Semaphore permit = permitFor(p.query);
+					if(!permit.tryAcquire()) {
+						if(inFlight > 0) {
+							break; //wait for one of our own queries to free a slot
+						}
+						long wait = deadline - System.nanoTime();
+						if(wait <= 0 || !permit.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+							result.partial = true;
+							return result;
+						}
+					}
+					if(p.paged == null) {
+						next++;
+					} else {
+						pages.pollFirst();
+					}
+					outstanding.add(submit(p, permit, done));
+					inFlight++;
+				}
+
+				//Merge whatever completes next
+				long wait = deadline - System.nanoTime();
+				Completion c = wait > 0 ? done.poll(wait, TimeUnit.NANOSECONDS) : done.poll();
+				if(c == null) {
+					result.partial = true;
+					return result;
+				}
+				inFlight--;
+				outstanding.remove(c.future);
+
+				ResultSet rs;
+				try {
+					rs = c.future.get();
+				} catch(Exception e) {
+					context.log("Query "+c.statement+" failed: "+e);
+					result.failed++;
+					continue;
+				}
+				for(int available = rs.getAvailableWithoutFetching(); available > 0; available--) {
+					handler.handle(c.statement, rs.one());
+				}
+				if(rs.isFullyFetched()) {
+					result.completed++;
+					result.finished.set(c.statement);
+				} else {
+					pages.addLast(new Pending(c.statement, statements.get(c.statement), rs));
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.partial = true;
+		} finally {
+			// Only left over if the deadline passed. Cancelling completes them, which gives back their permits.
+			for(ListenableFuture<ResultSet> f : outstanding) {
+				f.cancel(true);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Starts a query (or the next page of one) and queues its completion.
+	 * The node permit is given back as soon as the driver answers, or the query is cancelled.
+	 * @return The query's future
+	 */
+	private ListenableFuture<ResultSet> submit(final Pending p, final Semaphore permit,
+			final LinkedBlockingQueue<Completion> done) {
+		final ListenableFuture<ResultSet> future;
+		try {
+			future = p.paged == null ? session.executeAsync(p.query) : p.paged.fetchMoreResults();
+		} catch(RuntimeException e) {
+			permit.release();
+			throw e;
+		}
+		future.addListener(new Runnable() {
+			public void run() {
+				permit.release();
+				done.add(new Completion(p.statement, future));
+			}
+		}, sameThread);
+		return future;
+	}
+
+	/**
+	 * Finds the permits for the replica that owns a statement's partition.
+	 * Statements without a routing key all share one pool of permits.
+	 * @param statement A statement about to be executed
+	 * @return A semaphore for the statement's first replica
+	 */
+	private Semaphore permitFor(Statement statement) {
+		Configuration conf = session.getCluster().getConfiguration();
+		ProtocolVersion version = conf.getProtocolOptions().getProtocolVersion();
+		CodecRegistry codecs = conf.getCodecRegistry();
+		ByteBuffer routingKey = statement.getRoutingKey(version, codecs);
+		String keyspace = statement.getKeyspace();
+		if(routingKey == null || keyspace == null) {
+			return unroutedPermits;
+		}
+		Metadata metadata = session.getCluster().getMetadata();
+		Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), routingKey);
+		if(replicas.isEmpty()) {
+			return unroutedPermits;
+		}
+		Host host = replicas.iterator().next();
+		Semaphore permit = nodePermits.get(host);
+		if(permit == null) {
+			Semaphore fresh = new Semaphore(maxInFlightPerNode);
+			permit = nodePermits.putIfAbsent(host, fresh);
+			if(permit == null) {
+				permit = fresh;
+			}
+		}
+		return permit;
+	}
+
+}
@@ -0,0 +1,638 @@
+package queryAirData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import geoAirData.CellLayout;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+
+/**
+ * Everything the servlets share: one Cassandra session, the caches, and the pool of query
+ * threads. It is created when the web application starts (see QueryServiceListener) and kept
+ * in the servlet context, so the HTML page (GetQuery) and the data API (GetData) read through
+ * the same caches.
+ *
+ * It is configured through context-params in "web.xml":
+ *   cassandra.contactPoints - comma-separated host names of Cassandra nodes
+ *   cassandra.port - the native transport port
+ *   cassandra.coreConnections, cassandra.maxConnections - connections per node
+ *   cassandra.maxRequestsPerConnection - concurrent requests per connection
+ *   fanout.maxInFlightPerRequest - range lookups one request may have outstanding
+ *   fanout.maxInFlightPerNode - lookups outstanding against one Cassandra node, over all requests
+ *   fanout.timeoutMillis - time allowed for a request's lookups before a partial map is returned.
+ *                          It is kept well below async.timeoutMillis (see serve).
+ *   cover.maxCells - geohash boxes one map may query. Wider maps use coarser boxes.
+ *   occupancy.cacheMB - memory for the occupied boxes of recently queried partitions (see OccupancyCache)
+ *   cache.maxMB - memory for the points of recently queried boxes (see CellCache)
+ *   cache.maxBoxKB - memory for the points of one box. Busier boxes aren't cached.
+ *   cache.maxRequestMB - memory one request may use collecting points to cache. Past that, the
+ *                        request collects no more, and caches nothing.
+ *   cache.offHeap - "true" to keep those points outside the Java heap
+ *   cache.openHourSeconds - how long boxes of a still-filling hour are served from memory
+ *   watermark.refreshSeconds - how often the closed hours are read (see IngestWatermark)
+ *
+ * Requests are served asynchronously (see serve). The servlets only parse the parameters; the
+ * Cassandra lookups and the response are done by a dedicated pool of query threads, so
+ * Tomcat's connector threads are free while a map is built. The pool is also configured in
+ * "web.xml":
+ *   async.threads - query threads
+ *   async.backlog - requests allowed to wait for a query thread. Past that, the request gets a 503.
+ *   async.timeoutMillis - time allowed for a whole request. Past that, the request gets a 504.
+ *
+ * Maps of a range of hours (see queryRange) look up several hours at once on a pool of their
+ * own, configured by:
+ *   range.threads - threads that look up single hours of ranges, over all requests
+ *   range.hoursInFlight - hours one request may look up at once
+ *   range.maxHours - the most hours one map may cover
+ * Maps of flight states are thinned to a budget of points per response (see PointSampler), so
+ * that wide, busy views stay quick to send and draw:
+ *   points.budget - the most points one response may have, or 0 to send every point. A request
+ *                   may ask for fewer with its "maxPoints" parameter.
+ * Hit and miss counts of the cell cache are sent in the X-Cell-Cache header of each response.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class QueryService {
+
+	/**
+	 * The name of the servlet-context attribute that holds the service.
+	 */
+	public static final String attribute = "queryAirData.QueryService";
+
+	// Least time left between the end of the lookups and the request timeout, to write the response
+	private static final long minHeadroomMillis = 1000;
+
+	// States are stored by full-resolution geohash; see "geoAirData.CellLayout". The geohash
+	// is read so that rows of a range can be cached by box.
+	private static final String cellQuery = "SELECT lat, lon, geohash FROM openskyproject.flightcells WHERE"
+			+ " timeinterval=? AND prefix=? AND geohash>=? AND geohash<?;";
+	private static final String densityQuery = "SELECT lat, lon, geohash, count FROM openskyproject.density WHERE"
+			+ " timeinterval=? AND resolution=? AND prefix=? AND geohash>=? AND geohash<?;";
+
+	/**
+	 * Receives the points of a map.
+	 */
+	public interface PointSink {
+		/**
+		 * @param lat Latitude of the point
+		 * @param lon Longitude of the point
+		 * @param weight The count of a density point, or -1 for a flight state
+		 */
+		void add(double lat, double lon, long weight);
+	}
+
+	/**
+	 * The work of one request, done on a query thread.
+	 */
+	public interface Task {
+		/**
+		 * Looks up the map.
+		 */
+		void query();
+
+		/**
+		 * Writes the response. Not called if the request has already been answered, for
+		 * example because it timed out. A task that streams its rows may do its lookups here
+		 * instead of in query; fanout.timeoutMillis still bounds them.
+		 * @param response The response
+		 * @throws IOException
+		 */
+		void respond(HttpServletResponse response) throws IOException;
+	}
+
+	private final ServletContext context;
+	private CassandraConnector client;
+	private PreparedStatement cellStatement;
+	private PreparedStatement densityStatement;
+	private QueryFanOut fanOut;
+	private long fanOutTimeout;
+	private long maxCollectBytes;
+	private int maxCells;
+	private IngestWatermark watermark;
+	private OccupancyCache occupancy;
+	private CellCache cells;
+	private int openHourSeconds;
+	private ThreadPoolExecutor queryPool;
+	private long requestTimeout;
+	// How long after it is queued a request must be done with its lookups
+	private long lookupWindow;
+	// When the request being served on this query thread must be done looking up its map
+	private final ThreadLocal<Long> lookupDeadline = new ThreadLocal<Long>();
+	private ThreadPoolExecutor rangePool;
+	private int hoursInFlight;
+	private int maxRangeHours;
+	private int pointBudget;
+
+	/**
+	 * Connects to Cassandra and prepares the queries.
+	 * @param context The servlet context, whose init-params configure the service
+	 * @throws RuntimeException if Cassandra can't be reached
+	 */
+	public QueryService(ServletContext context) {
+		this.context = context;
+		String[] contactPoints = getInitParameter("cassandra.contactPoints", "localhost").split(",");
+		for(int i = 0; i < contactPoints.length; i++) {
+			contactPoints[i] = contactPoints[i].trim();
+		}
+		int port = intParameter("cassandra.port", 9042);
+		int coreConnections = intParameter("cassandra.coreConnections",
+				CassandraConnector.defaultCoreConnections);
+		int maxConnections = intParameter("cassandra.maxConnections",
+				CassandraConnector.defaultMaxConnections);
+		int maxRequests = intParameter("cassandra.maxRequestsPerConnection",
+				CassandraConnector.defaultMaxRequestsPerConnection);
+
+		client = new CassandraConnector();
+		try {
+			client.connect(contactPoints, port, coreConnections, maxConnections, maxRequests);
+			cellStatement = client.prepare(cellQuery);
+			densityStatement = client.prepare(densityQuery);
+			fanOut = new QueryFanOut(client.getSession(), context, intParameter("fanout.maxInFlightPerRequest", 128),
+					intParameter("fanout.maxInFlightPerNode", 512));
+			openHourSeconds = intParameter("cache.openHourSeconds", 30);
+			watermark = new IngestWatermark(client.getSession(), context,
+					1000L*intParameter("watermark.refreshSeconds", 60));
+			occupancy = new OccupancyCache(client.getSession(), fanOut, watermark,
+					(long)intParameter("occupancy.cacheMB", 32) << 20, 1000L*openHourSeconds);
+		} catch(RuntimeException e) {
+			close();
+			throw e;
+		}
+		fanOutTimeout = intParameter("fanout.timeoutMillis", 10000);
+		maxCells = intParameter("cover.maxCells", 2601);
+		cells = new CellCache((long)intParameter("cache.maxMB", 256) << 20,
+				(long)intParameter("cache.maxBoxKB", 4096) << 10,
+				Boolean.parseBoolean(getInitParameter("cache.offHeap", "false")), watermark, 1000L*openHourSeconds);
+
+		int threads = intParameter("async.threads", 32);
+		queryPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(intParameter("async.backlog", 256)), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "heatout-query-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		queryPool.allowCoreThreadTimeOut(true);
+		maxCollectBytes = (long)intParameter("cache.maxRequestMB", 64) << 20;
+		requestTimeout = intParameter("async.timeoutMillis", 15000);
+		// A streamed page is committed before its lookups start, so they must end well before
+		// the request times out, or the page would be cut off mid-array
+		lookupWindow = Math.max(0, requestTimeout - Math.max(minHeadroomMillis, requestTimeout/5));
+		if(fanOutTimeout > lookupWindow) {
+			context.log("fanout.timeoutMillis lowered from "+fanOutTimeout+" to "+lookupWindow
+					+", to leave time to finish the response within async.timeoutMillis");
+			fanOutTimeout = lookupWindow;
+		}
+
+		// Range lookups have their own threads, so that a query thread waiting for its hours
+		// never waits behind other query threads
+		int rangeThreads = intParameter("range.threads", 16);
+		rangePool = new ThreadPoolExecutor(rangeThreads, rangeThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "heatout-range-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		rangePool.allowCoreThreadTimeOut(true);
+		hoursInFlight = intParameter("range.hoursInFlight", 4);
+		maxRangeHours = intParameter("range.maxHours", 168);
+		pointBudget = intParameter("points.budget", 100000);
+	}
+
+	/**
+	 * Stops the query threads and closes the shared Cassandra session.
+	 */
+	public void close() {
+		if(queryPool != null) {
+			queryPool.shutdownNow();
+			queryPool = null;
+		}
+		if(rangePool != null) {
+			rangePool.shutdownNow();
+			rangePool = null;
+		}
+		if(watermark != null) {
+			watermark.close();
+			watermark = null;
+		}
+		if(client != null) {
+			client.close();
+			client = null;
+		}
+		if(cells != null) {
+			context.log("Cell cache: "+cells.describe());
+		}
+	}
+
+	/**
+	 * Reads a context init-param, falling back to a default when it is absent or blank.
+	 * @param name Name of the init-param
+	 * @param defaultValue Value used when the parameter isn't set
+	 * @return A string
+	 */
+	private String getInitParameter(String name, String defaultValue) {
+		String value = context.getInitParameter(name);
+		return (value == null || value.trim().equals("")) ? defaultValue : value.trim();
+	}
+
+	/**
+	 * Reads an integer context init-param.
+	 * @param name Name of the init-param
+	 * @param defaultValue Value used when the parameter isn't set
+	 * @return An integer
+	 */
+	private int intParameter(String name, int defaultValue) {
+		return Integer.parseInt(getInitParameter(name, Integer.toString(defaultValue)));
+	}
+
+	/**
+	 * Hands a request to a query thread. The caller returns as soon as the request is queued.
+	 * If too many requests are waiting, the request gets a 503; if the task takes too long, a 504.
+	 *
+	 * A task that streams its response has answered the request before its lookups end, and can
+	 * no longer be given a 504. Its lookups are therefore cut short at fanout.timeoutMillis,
+	 * and also early enough that the task has time to finish its response, counting the time
+	 * the request waited for a query thread.
+	 * @param request The request
+	 * @param response Its response
+	 * @param task The lookups and the response
+	 * @throws IOException
+	 */
+	public void serve(HttpServletRequest request, final HttpServletResponse response, final Task task)
+			throws IOException {
+		/* Whichever of the query thread, the timeout, or the admission check gets here first
+		 * answers the request. The others leave it alone. */
+		final AtomicBoolean answered = new AtomicBoolean(false);
+		final AsyncContext async = request.startAsync(request, response);
+		async.setTimeout(requestTimeout);
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lookupWindow);
+		async.addListener(new AsyncListener() {
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if(answered.compareAndSet(false, true)) {
+					response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "The map took too long to build.");
+					async.complete();
+				}
+			}
+			public void onError(AsyncEvent event) {
+				if(answered.compareAndSet(false, true)) {
+					async.complete();
+				}
+			}
+			public void onStartAsync(AsyncEvent event) { }
+			public void onComplete(AsyncEvent event) { }
+		});
+
+		try {
+			queryPool.execute(new Runnable() {
+				public void run() {
+					lookupDeadline.set(deadline);
+					try {
+						task.query();
+						if(answered.compareAndSet(false, true)) {
+							response.setHeader("X-Cell-Cache", cells.describe());
+							task.respond(response);
+							async.complete();
+						}
+					} catch(Exception e) {
+						context.log("Query failed", e);
+						if(answered.compareAndSet(false, true)) {
+							try {
+								response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+							} catch(IOException ignored) {
+								// The client is gone
+							}
+							async.complete();
+						}
+					} finally {
+						lookupDeadline.remove();
+					}
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			if(answered.compareAndSet(false, true)) {
+				response.setHeader("Retry-After", "1");
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many maps are being built.");
+				async.complete();
+			}
+		}
+	}
+
+	/**
+	 * Plans the geohash boxes of a map. The cover's resolution is the one the map is built at;
+	 * it is coarser than getResolution(rad) if the map would need more than cover.maxCells boxes.
+	 * @param lat Lattitude of the center point
+	 * @param lon Longitude of the center point
+	 * @param rad Desired radius of the map
+	 * @return The cover to pass to query or queryRange
+	 */
+	public GeohashCover plan(double lat, double lon, int rad) {
+		return GeohashCover.plan(lat, lon, rad, getResolution(rad), maxCells);
+	}
+
+	/**
+	 * Sends the query to Cassandra and gets a list of GPS coordinates in response.
+	 * The geohash boxes are read as clustering ranges of "openskyproject.flightcells", or of
+	 * "openskyproject.density" for density maps. Boxes that OccupancyCache knows are empty are
+	 * skipped; reading occupancy counts against the same time limit as the lookups.
+	 * Boxes in the CellCache are answered from memory. The others are looked up concurrently,
+	 * their rows are merged as they arrive, and they are cached once every lookup has finished.
+	 * @param time The UNIX timestamp
+	 * @param cover The boxes of the map (see plan)
+	 * @param density Whether to read a weighted point per box instead of every state
+	 * @param points Receives the points, on the calling thread
+	 * @return A summary of the lookups, which says whether the result is partial
+	 */
+	public QueryFanOut.Result query(int time, GeohashCover cover, boolean density, PointSink points) {
+		return query(time, cover, density, points, lookupTimeout());
+	}
+
+	/**
+	 * @return The time the lookups of the request being served may take: fanout.timeoutMillis,
+	 * or less if the request waited long for its query thread
+	 */
+	private long lookupTimeout() {
+		Long deadline = lookupDeadline.get();
+		if(deadline == null) {
+			return fanOutTimeout;
+		}
+		long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		return Math.max(0, Math.min(fanOutTimeout, left));
+	}
+
+	/**
+	 * Like query(int, GeohashCover, boolean, PointSink), with a time limit.
+	 * @param timeoutMillis Time allowed for the lookups
+	 */
+	private QueryFanOut.Result query(int time, GeohashCover cover, final boolean density,
+			final PointSink points, long timeoutMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		int res = cover.getResolution();
+
+		// Boxes that ingestion never announced have no rows, so they aren't queried
+		final int hour = time/3600;
+		long[] geoHashes = occupancy.occupied(hour, res, cover.getCells(), timeoutMillis);
+
+		// Cached boxes are answered now; the rest are collected as their rows arrive
+		long[] missing = new long[geoHashes.length];
+		int n = 0;
+		for(long cell : geoHashes) {
+			CellCache.Points cached = cells.get(hour, res, density, cell);
+			if(cached == null) {
+				missing[n++] = cell;
+			} else {
+				for(int i = 0; i < cached.size(); i++) {
+					points.add(cached.lat(i), cached.lon(i), density ? cached.weight(i) : -1);
+				}
+			}
+		}
+		final HashMap<Long, CellCache.Builder> loaded = new HashMap<Long, CellCache.Builder>();
+		for(int i = 0; i < n; i++) {
+			loaded.put(missing[i], cells.newBuilder(hour, density));
+		}
+		// Past this many points, the request stops collecting and caches nothing
+		final long maxCollected = maxCollectBytes/(density ? 24 : 16);
+
+		// Neighboring boxes in the same partition are read with a single range scan
+		long[] ranges = CellLayout.ranges(Arrays.copyOf(missing, n), res);
+		List<BoundStatement> lookups = new ArrayList<BoundStatement>(ranges.length/2);
+		final int shift = 4*(CellLayout.fullResolution-res);
+		for(int i = 0; i < ranges.length; i += 2) {
+			int partition = CellLayout.partitionOf(ranges[i]);
+			if(density) {
+				// Rollups are keyed by the box itself rather than by full-resolution geohash
+				lookups.add(densityStatement.bind(hour, res, partition,
+						(int)(ranges[i] >>> shift), (int)(ranges[i+1] >>> shift)));
+			} else {
+				lookups.add(cellStatement.bind(hour, partition, (int)ranges[i], (int)ranges[i+1]));
+			}
+		}
+
+		QueryFanOut.Result status = fanOut.execute(lookups, new QueryFanOut.RowHandler() {
+			private long collected;
+
+			public void handle(int statement, Row row) {
+				double thisLat = row.getDouble(0);
+				double thisLon = row.getDouble(1);
+				long weight = density ? row.getLong(3) : -1;
+				points.add(thisLat, thisLon, weight);
+				long cell = density ? row.getInt(2) : row.getInt(2) >>> shift;
+				CellCache.Builder box = loaded.get(cell);
+				if(box != null) {
+					box.add(thisLat, thisLon, weight);
+					if(++collected > maxCollected) {
+						loaded.clear();
+					}
+				}
+			}
+		}, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+
+		// A box is only complete, and worth caching, if every lookup finished
+		if(!status.isPartial() && status.failed == 0) {
+			for(Map.Entry<Long, CellCache.Builder> e : loaded.entrySet()) {
+				cells.put(hour, res, density, e.getKey(), e.getValue());
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * The merged density of one hour of a range, and the outcome of its lookups.
+	 */
+	private static class HourResult {
+		final DensityGrid grid;
+		final QueryFanOut.Result status;
+
+		HourResult(DensityGrid grid, QueryFanOut.Result status) {
+			this.grid = grid;
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Builds one density map out of a range of hours. Each hour is looked up like a single map
+	 * on the range threads, at most hoursInFlight at a time, and the hours are merged into one
+	 * DensityGrid as they finish. Each hour reads its density rollups, which are much smaller
+	 * than its states. An hour without rollups in the map only reads states if OccupancyCache
+	 * says its boxes may have some, so that the empty hours of a quiet area, such as an ocean,
+	 * aren't looked up twice. Boxes in the CellCache are answered from memory, as for single maps.
+	 *
+	 * The whole range shares the time allowed for one fan-out. Hours that haven't finished by
+	 * then are left out, and the result is marked as partial.
+	 * @param firstHour The first hour (UNIX time / 3600)
+	 * @param lastHour The last hour, inclusive
+	 * @param cover The boxes of the map (see plan)
+	 * @param points Receives one weighted point per box, on the calling thread
+	 * @return A summary of every hour's lookups
+	 * @throws IllegalArgumentException if the range is empty or longer than range.maxHours
+	 */
+	public QueryFanOut.Result queryRange(int firstHour, int lastHour, final GeohashCover cover,
+			PointSink points) {
+		if(lastHour < firstHour || lastHour - firstHour >= maxRangeHours) {
+			throw new IllegalArgumentException("A range covers 1 to "+maxRangeHours+" hours.");
+		}
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lookupTimeout());
+		final int res = cover.getResolution();
+		ExecutorCompletionService<HourResult> done = new ExecutorCompletionService<HourResult>(rangePool);
+		List<Future<HourResult>> started = new ArrayList<Future<HourResult>>();
+
+		DensityGrid merged = new DensityGrid(res);
+		QueryFanOut.Result total = new QueryFanOut.Result();
+		int next = firstHour, running = 0;
+		try {
+			while(next <= lastHour || running > 0) {
+				while(running < hoursInFlight && next <= lastHour) {
+					final int hour = next++;
+					started.add(done.submit(new Callable<HourResult>() {
+						public HourResult call() {
+							long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+							DensityGrid grid = new DensityGrid(res);
+							QueryFanOut.Result status = query(hour*3600, cover, true, grid, left);
+							if(grid.isEmpty() && !status.isPartial() && status.failed == 0) {
+								// No rollups: either the boxes are empty, or the hour isn't rolled up (yet)
+								left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+								if(occupancy.hasStates(hour, res, cover.getCells(), left)) {
+									// Count its states instead
+									left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+									status = query(hour*3600, cover, false, grid, left);
+								}
+							}
+							return new HourResult(grid, status);
+						}
+					}));
+					running++;
+				}
+
+				long wait = deadline - System.nanoTime();
+				Future<HourResult> f = wait > 0 ? done.poll(wait, TimeUnit.NANOSECONDS) : done.poll();
+				if(f == null) {
+					total.partial = true;
+					break;
+				}
+				running--;
+				try {
+					HourResult hour = f.get();
+					merged.addAll(hour.grid);
+					total.statements += hour.status.statements;
+					total.completed += hour.status.completed;
+					total.failed += hour.status.failed;
+					total.partial |= hour.status.partial;
+				} catch(ExecutionException e) {
+					context.log("Hour of range failed", e.getCause());
+					total.failed++;
+				}
+			}
+			total.partial |= next <= lastHour;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			total.partial = true;
+		} finally {
+			// Hours still running are past the deadline; their lookups give up when interrupted
+			for(Future<HourResult> f : started) {
+				f.cancel(true);
+			}
+		}
+		merged.writeTo(points);
+		return total;
+	}
+
+	/**
+	 * @return The most hours one range may cover
+	 */
+	public int getMaxRangeHours() {
+		return maxRangeHours;
+	}
+
+	/**
+	 * Makes a sampler that thins a map of flight states to the point budget.
+	 * @param cover The boxes of the map (see plan). They are sampled separately.
+	 * @param requested The "maxPoints" parameter of the request, or null. It may only lower the budget.
+	 * @return A sampler, or null if the map should not be thinned
+	 * @throws IllegalArgumentException if maxPoints isn't a whole number
+	 */
+	public PointSampler newSampler(GeohashCover cover, String requested) {
+		int budget = pointBudget;
+		if(requested != null && !requested.trim().isEmpty()) {
+			int asked;
+			try {
+				asked = Integer.parseInt(requested.trim());
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("maxPoints must be a whole number.");
+			}
+			if(asked > 0 && (budget <= 0 || asked < budget)) {
+				budget = asked;
+			}
+		}
+		return budget > 0 ? new PointSampler(budget, cover.getResolution()) : null;
+	}
+
+	/**
+	 * @return How long, in seconds, maps of an hour that isn't closed may be reused
+	 */
+	public int getOpenHourSeconds() {
+		return openHourSeconds;
+	}
+
+	/**
+	 * @param firstHour The first hour of a map (UNIX time / 3600)
+	 * @param lastHour The last hour, inclusive
+	 * @return Whether every hour of the map has been fully ingested, so the map never changes
+	 */
+	public boolean isClosed(int firstHour, int lastHour) {
+		return watermark.isClosed(firstHour, lastHour);
+	}
+
+	/**
+	 * Gets the most appropriate resolution of the map for the given radius.
+	 * Resolution is the number of hexadecimal digits used in geohashes.
+	 * Currently only resolutions 4, 5, 6, and 7 are supported.
+	 *
+	 * @param rad an integer
+	 * @return an integer
+	 */
+	public static int getResolution(int rad) {
+		int res;
+		if(rad >= 625) {
+			res = 4;
+		} else if (rad >= 156) {
+			res = 5;
+		} else if (rad >= 39) {
+			res = 6;
+		} else {
+			res = 7;
+		}
+		return res;
+	}
+
+}
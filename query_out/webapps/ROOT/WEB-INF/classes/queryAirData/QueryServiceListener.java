@@ -0,0 +1,37 @@
+package queryAirData;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts the QueryService when the web application starts, and closes it when the application
+ * stops. If Cassandra can't be reached, the service is left out of the context and the
+ * servlets report themselves unavailable.
+ *
+ * @author Kevin Moss
+ *
+ */
+public class QueryServiceListener implements ServletContextListener {
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		try {
+			context.setAttribute(QueryService.attribute, new QueryService(context));
+		} catch(RuntimeException e) {
+			context.log("Unable to connect to Cassandra: "+e);
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		QueryService service = (QueryService)context.getAttribute(QueryService.attribute);
+		if(service != null) {
+			context.removeAttribute(QueryService.attribute);
+			service.close();
+		}
+	}
+
+}